@@ -0,0 +1,49 @@
+package ironbreakowl;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CancellationException;
+
+public class CancellationTokenTest extends TestCase {
+    public void testCancel() {
+        CancellationToken token = new CancellationToken();
+        token.throwIfCancelled();
+        token.cancel();
+        assertTrue(token.isCancelled());
+        try {
+            token.throwIfCancelled();
+            fail();
+        } catch (CancellationException ignored) {
+        }
+    }
+
+    public void testLinkedTokenIsCancelled() {
+        CancellationToken parent = new CancellationToken();
+        CancellationToken child = new CancellationToken();
+        CancellationToken unlinked = new CancellationToken();
+        parent.link(child);
+        parent.link(unlinked);
+        parent.unlink(unlinked);
+        parent.cancel();
+        assertTrue(child.isCancelled());
+        assertFalse(unlinked.isCancelled());
+
+        CancellationToken late = new CancellationToken();
+        parent.link(late);
+        assertTrue(late.isCancelled());
+    }
+
+    public void testTimeout() throws InterruptedException {
+        Cancellation cancellation = Cancellation.begin(null, 10);
+        Thread.sleep(200);
+        assertTrue(cancellation.token.isCancelled());
+        cancellation.finish();
+
+        CancellationToken caller = new CancellationToken();
+        cancellation = Cancellation.begin(caller, 60000);
+        caller.cancel();
+        assertTrue(cancellation.token.isCancelled());
+        cancellation.finish();
+        assertSame(caller, Cancellation.begin(caller, 0).token);
+    }
+}
@@ -0,0 +1,45 @@
+package ironbreakowl;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class CompressionTest extends TestCase {
+    public void testRoundTrip() {
+        byte[] bytes = new byte[4096];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i % 7);
+        }
+        byte[] compressed = Compression.compress(bytes);
+        assertTrue(compressed.length < bytes.length);
+        assertTrue(Compression.isCompressed(compressed));
+        assertTrue(Arrays.equals(bytes, Compression.decompress(compressed)));
+    }
+
+    public void testSmallValueIsKept() {
+        byte[] bytes = new byte[]{1, 2, 3};
+        assertSame(bytes, Compression.compress(bytes));
+        assertSame(bytes, Compression.decompress(bytes));
+    }
+
+    public void testUncompressedValueWithHeaderIsKept() {
+        byte[] bytes = new byte[]{(byte) 0xC0, 0x7A, 1, 5, 5, 5};
+        assertTrue(Arrays.equals(bytes, Compression.decompress(bytes)));
+    }
+
+    public void testRawValueWithHeaderIsEscaped() {
+        byte[] small = new byte[]{(byte) 0xC0, 0x7A, 1, 5, 5, 5};
+        byte[] stored = Compression.compress(small);
+        assertFalse(Compression.isCompressed(stored));
+        assertTrue(Arrays.equals(small, Compression.decompress(stored)));
+
+        // Already compressed data doesn't shrink again, so it is stored raw and must not be inflated on the way out
+        byte[] bytes = new byte[4096];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i % 7);
+        }
+        byte[] payload = Compression.compress(bytes);
+        stored = Compression.compress(payload);
+        assertTrue(Arrays.equals(payload, Compression.decompress(stored)));
+    }
+}
@@ -0,0 +1,114 @@
+package ironbreakowl;
+
+import android.test.AndroidTestCase;
+
+import ironbreakowl.OwlDatabaseOpenHelperTest.Items;
+import ironbreakowl.OwlDatabaseOpenHelperTest.TestDatabase;
+
+public class KeyFilterTest extends AndroidTestCase {
+    @Table("items")
+    @BloomFilter("name")
+    public interface FilteredItems {
+        @Query(where = "name = ?")
+        boolean exists(@Where String name);
+    }
+
+    private TestDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(OwlDatabaseOpenHelperTest.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mDatabase != null) {
+            mDatabase.close();
+        }
+        getContext().deleteDatabase(OwlDatabaseOpenHelperTest.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    // The filter is built on the single background thread, so a task queued after it runs once it is done
+    private void awaitBuild() throws Exception {
+        mDatabase.getBackgroundExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    public void testNoFalseNegatives() {
+        BloomBitSet filter = new BloomBitSet(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("key" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("key" + i));
+        }
+        int falsePositives = 0;
+        for (int i = 10000; i < 20000; i++) {
+            if (filter.mightContain("key" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 300);
+    }
+
+    public void testSizing() {
+        BloomBitSet filter = new BloomBitSet(1000, 0.01);
+        assertEquals(9600, filter.getBitCount());
+        assertEquals(7, filter.getHashCount());
+        assertEquals(64, new BloomBitSet(1, 0.5).getBitCount());
+    }
+
+    public void testEqualArgumentsShareAKey() {
+        BloomBitSet filter = new BloomBitSet(100, 0.01);
+        KeyFilter.putKeys(filter, 5L);
+        KeyFilter.putKeys(filter, 7.0);
+        KeyFilter.putKeys(filter, "9.0");
+        KeyFilter.putKeys(filter, true);
+        assertTrue(filter.mightContain(KeyFilter.queryKey(5)));
+        assertTrue(filter.mightContain(KeyFilter.queryKey("5")));
+        assertTrue(filter.mightContain(KeyFilter.queryKey(5.0)));
+        assertTrue(filter.mightContain(KeyFilter.queryKey(7L)));
+        assertTrue(filter.mightContain(KeyFilter.queryKey("7")));
+        assertTrue(filter.mightContain(KeyFilter.queryKey(9)));
+        assertTrue(filter.mightContain(KeyFilter.queryKey(1)));
+        assertFalse(filter.mightContain(KeyFilter.queryKey(6)));
+    }
+
+    public void testAmbiguousArgumentsSkipTheFilter() {
+        assertNull(KeyFilter.queryKey("05"));
+        assertNull(KeyFilter.queryKey(" 5"));
+        assertNull(KeyFilter.queryKey("5.0"));
+        assertNull(KeyFilter.queryKey("1e3"));
+        assertNull(KeyFilter.queryKey(2.5));
+        assertNull(KeyFilter.queryKey(new byte[]{1}));
+        assertNull(KeyFilter.queryKey(null));
+        assertEquals("abc", KeyFilter.queryKey("abc"));
+        assertEquals("1d", KeyFilter.queryKey("1d"));
+        assertEquals("-5", KeyFilter.queryKey("-5"));
+    }
+
+    public void testWritesThroughOtherInterfaces() throws Exception {
+        mDatabase = new TestDatabase(getContext(), false, null);
+        FilteredItems filtered = mDatabase.getTable(FilteredItems.class);
+        Items items = mDatabase.getTable(Items.class);
+        items.insert(1, "a");
+        awaitBuild();
+        assertTrue(filtered.exists("a"));
+        assertFalse(filtered.exists("b"));
+
+        items.insert(2, "b");
+        assertTrue(filtered.exists("b"));
+
+        mDatabase.getWritableDatabase().execSQL("insert into items(id, name) values (3, 'c')");
+        mDatabase.onTableChanged(Items.class);
+        assertTrue(filtered.exists("c"));
+        awaitBuild();
+        assertTrue(filtered.exists("c"));
+        assertFalse(filtered.exists("d"));
+    }
+}
@@ -0,0 +1,83 @@
+package ironbreakowl;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import ironbreakowl.OwlDatabaseOpenHelperTest.Items;
+import ironbreakowl.OwlDatabaseOpenHelperTest.TestDatabase;
+
+public class MaintenanceTest extends AndroidTestCase {
+    private TestDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(OwlDatabaseOpenHelperTest.DATABASE_NAME);
+        mDatabase = new TestDatabase(getContext(), false, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        getContext().deleteDatabase(OwlDatabaseOpenHelperTest.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    // Steps run on the single background thread, so a task queued after them runs once they are done
+    private void awaitBackground() throws Exception {
+        mDatabase.getBackgroundExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private boolean isAnalyzed() {
+        Cursor cursor = mDatabase.getWritableDatabase().rawQuery(
+                "select 1 from sqlite_master where name = 'sqlite_stat1'", null);
+        try {
+            return cursor.moveToNext();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insertRows(int first, int count) {
+        Items items = mDatabase.getTable(Items.class);
+        for (int i = first; i < first + count; i++) {
+            items.insert(i, "a");
+        }
+    }
+
+    public void testDefaultPolicy() throws Exception {
+        MaintenancePolicy policy = mDatabase.getMaintenancePolicy();
+        assertNotNull(policy);
+        assertEquals(1000, policy.getAnalyzeThreshold());
+    }
+
+    public void testOptOut() throws Exception {
+        mDatabase.setMaintenancePolicy(new MaintenancePolicy().analyzeThreshold(10));
+        insertRows(1, 9);
+        mDatabase.setMaintenancePolicy(null);
+        insertRows(10, 1);
+        awaitBackground();
+        assertFalse(isAnalyzed());
+    }
+
+    public void testAnalyzesAfterThreshold() throws Exception {
+        mDatabase.setMaintenancePolicy(new MaintenancePolicy().analyzeThreshold(10));
+        insertRows(1, 9);
+        awaitBackground();
+        assertFalse(isAnalyzed());
+        insertRows(10, 1);
+        awaitBackground();
+        assertTrue(isAnalyzed());
+    }
+
+    public void testSqliteVersion() throws Exception {
+        SQLiteDatabase db = mDatabase.getWritableDatabase();
+        assertTrue(mDatabase.isSqliteVersionAtLeast(db, 3, 0));
+        assertFalse(mDatabase.isSqliteVersionAtLeast(db, 99, 0));
+    }
+}
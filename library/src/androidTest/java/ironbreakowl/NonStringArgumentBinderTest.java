@@ -3,6 +3,7 @@ package ironbreakowl;
 import junit.framework.TestCase;
 
 import java.util.Arrays;
+import java.util.List;
 
 public class NonStringArgumentBinderTest extends TestCase {
     public void testBind() {
@@ -35,6 +36,76 @@ public class NonStringArgumentBinderTest extends TestCase {
         assertEquals(0, binder.selectionArgs.length);
     }
 
+    public void testBindCollection() {
+        NonStringArgumentBinder binder = new NonStringArgumentBinder("a=? and b in ?",
+                new Object[]{"A", Arrays.asList(1, "x", 2)}, makeTrueArrays(2));
+        assertEquals("a=? and b in (1,?,2)", binder.selection);
+        assertEquals(2, binder.selectionArgs.length);
+        assertEquals("A", binder.selectionArgs[0]);
+        assertEquals("x", binder.selectionArgs[1]);
+
+        binder = new NonStringArgumentBinder("a in ? or b in ?", new Object[]{new long[]{3, 4}, new int[0]},
+                makeTrueArrays(2));
+        assertEquals("a in (3,4) or b in ()", binder.selection);
+        assertEquals(0, binder.selectionArgs.length);
+    }
+
+    public void testSplitArguments() {
+        assertNull(NonStringArgumentBinder.splitArguments("a in ?", new Object[]{new long[]{1, 2, 3}},
+                makeTrueArrays(1), 3));
+
+        List<Object[]> chunks = NonStringArgumentBinder.splitArguments("a = ? and b in ?",
+                new Object[]{"a", new int[]{1, 2, 3, 4, 5}}, makeTrueArrays(2), 3);
+        assertEquals(3, chunks.size());
+        assertEquals("a", chunks.get(0)[0]);
+        assertEquals(Arrays.asList(1L, 2L), chunks.get(0)[1]);
+        assertEquals(Arrays.asList(3L, 4L), chunks.get(1)[1]);
+        assertEquals(Arrays.<Object>asList(5L), chunks.get(2)[1]);
+    }
+
+    public void testSplitArgumentsCountsOtherCollections() {
+        List<Object[]> chunks = NonStringArgumentBinder.splitArguments("a in ? and b in ?",
+                new Object[]{Arrays.asList("x", "y"), new long[]{1, 2, 3, 4, 5}}, makeTrueArrays(2), 4);
+        assertEquals(3, chunks.size());
+        for (Object[] chunk : chunks) {
+            assertEquals(Arrays.asList("x", "y"), chunk[0]);
+            assertTrue(((List) chunk[1]).size() <= 2);
+        }
+
+        try {
+            NonStringArgumentBinder.splitArguments("a in ? and b in ?",
+                    new Object[]{Arrays.asList("x", "y", "z"), new long[]{1, 2, 3, 4}}, makeTrueArrays(2), 3);
+            fail("A chunk without room for the split collection was accepted");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    public void testSplitArgumentsRemovesDuplicates() {
+        List<Object[]> chunks = NonStringArgumentBinder.splitArguments("a in ?",
+                new Object[]{Arrays.asList(1, 1L, 2, 2, 3)}, makeTrueArrays(1), 2);
+        assertEquals(2, chunks.size());
+        assertEquals(Arrays.asList(1L, 2L), chunks.get(0)[0]);
+        assertEquals(Arrays.<Object>asList(3L), chunks.get(1)[0]);
+
+        chunks = NonStringArgumentBinder.splitArguments("a in ?", new Object[]{Arrays.asList(1, 1, 2)},
+                makeTrueArrays(1), 2);
+        assertEquals(1, chunks.size());
+        assertEquals(Arrays.asList(1L, 2L), chunks.get(0)[0]);
+    }
+
+    public void testSplitArgumentsRejectsOrAndNot() {
+        Object[] args = {new long[]{1, 2, 3}};
+        for (String selection : new String[]{"a in ? or b = 1", "a not in ?", "not (a in ?)", "(b=1 OR a in ?)"}) {
+            try {
+                NonStringArgumentBinder.splitArguments(selection, args, makeTrueArrays(1), 2);
+                fail("Split " + selection);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        assertEquals(2, NonStringArgumentBinder.splitArguments("a in ? and b is not null and c = 'or'", args,
+                makeTrueArrays(1), 2).size());
+    }
+
     private static boolean[] makeTrueArrays(int length) {
         boolean[] arrays = new boolean [length];
         Arrays.fill(arrays, true);
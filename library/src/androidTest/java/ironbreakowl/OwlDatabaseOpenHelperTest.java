@@ -1,10 +1,1011 @@
 package ironbreakowl;
 
-import junit.framework.TestCase;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.test.AndroidTestCase;
 
+import java.io.File;
 import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+public class OwlDatabaseOpenHelperTest extends AndroidTestCase {
+    static final String DATABASE_NAME = "owl_test.db";
+
+    public static class Item extends TrackedModel {
+        @Column("id")
+        public long id;
+        @Column("name")
+        public String name;
+    }
+
+    public interface ItemReader {
+        @Column("id")
+        long id();
+    }
+
+    @Table("items")
+    public interface Items {
+        @Insert
+        long insert(@Value("id") long id, @Value("name") String name);
+
+        @Query(where = "id = ?")
+        boolean exists(@Where long id);
+
+        @Query(orderBy = "id")
+        List<Item> all();
+
+        @Parallel(minRows = 2)
+        @Query(orderBy = "id")
+        List<Item> allParallel();
+
+        @Query(orderBy = "id")
+        Iterable<ItemReader> iterate();
+
+        @Prefetch(queueSize = 2)
+        @Query(orderBy = "id")
+        CursorIterable<ItemReader> prefetch();
+
+        @Update(where = "id = ?")
+        Integer rename(@Where long id, @Value("name") String name);
+
+        @Upsert(conflict = "id")
+        void upsert(@Value("id") long id, @Value("name") String name);
+
+        @Delete(where = "id = ?")
+        boolean delete(@Where long id);
+
+        @Query(where = "id in ?")
+        List<Item> byIds(@Where Collection<Long> ids);
+
+        @Query(where = "id in ?")
+        int countByIds(@Where Collection<Long> ids);
+
+        @Query(where = "id in ?", orderBy = "id")
+        List<Item> byIdsOrdered(@Where Collection<Long> ids);
+
+        @Query(where = "id in ? or name = ?")
+        List<Item> byIdsOrName(@Where Collection<Long> ids, @Where String name);
+
+        @Update(where = "name = ? and id in ?")
+        Integer renameAll(@Where String name, @Where Collection<Long> ids, @Value("name") String newName);
+
+        @Update(where = "id = ?")
+        void save(@Where long id, @Value("item") Item item);
+    }
+
+    @Table(value = "items", cacheSize = 10)
+    public interface CachedItems {
+        @MultiGet("id")
+        Map<Long, Item> get(Collection<Long> ids);
+    }
+
+    @Table(value = "items", retentionColumn = "id")
+    public interface BrokenItems {
+        @Query
+        int count();
+    }
+
+    @Table(value = "items", maxRows = 5)
+    public interface CappedItems {
+        @Query
+        int count();
+    }
+
+    public static class Tag {
+        @Column("item_id")
+        public long itemId;
+        @Column("label")
+        public String label;
+    }
+
+    public static class TaggedItem {
+        @Column("id")
+        public long id;
+        @Relation(table = "tags", parentColumn = "id", childColumn = "item_id")
+        public List<Tag> tags;
+    }
+
+    @Table("items")
+    public interface TaggedItems {
+        @Query(orderBy = "id")
+        List<TaggedItem> all();
+    }
+
+    public static class Author {
+        @Column("id")
+        public long id;
+        @Relation(table = "posts", parentColumn = "id", childColumn = "author_id")
+        public List<Post> posts;
+    }
+
+    public static class Post {
+        @Column("id")
+        public long id;
+        @Column("author_id")
+        public long authorId;
+        @Relation(table = "authors", parentColumn = "author_id", childColumn = "id")
+        public List<Author> authors;
+    }
+
+    @Table("authors")
+    public interface Authors {
+        @Insert
+        void insert(@Value("id") long id, @Value("name") String name);
+
+        @Query(orderBy = "id")
+        List<Author> all();
+    }
+
+    public static class PostWithAuthor {
+        @Column("posts.id")
+        public long id;
+        @Column("title")
+        public String title;
+        @Column("authors.name")
+        public String authorName;
+    }
+
+    public interface PostWithAuthorReader {
+        @Column("title")
+        String title();
+
+        @Column("authors.name")
+        String authorName();
+    }
+
+    @Table("posts")
+    public interface Posts {
+        @Insert
+        void insert(@Value("id") long id, @Value("author_id") long authorId, @Value("title") String title);
+
+        @Join(value = "authors", on = "authors.id = posts.author_id", left = true)
+        @Query(select = {"posts.id", "title", "authors.name"}, orderBy = "posts.id")
+        List<PostWithAuthor> withAuthors();
+
+        @Join(value = "authors", on = "authors.id = posts.author_id", left = true)
+        @Query(select = {"title", "authors.name"}, orderBy = "posts.id")
+        Iterable<PostWithAuthorReader> readWithAuthors();
+
+        @Join(value = "authors", on = "authors.id = posts.author_id")
+        @Query(orderBy = "posts.id")
+        List<PostWithAuthor> allWithAuthors();
+    }
+
+    public static class Point implements Parcelable {
+        static volatile int sWriteCount;
+
+        public static final Creator<Point> CREATOR = new Creator<Point>() {
+            @Override
+            public Point createFromParcel(Parcel source) {
+                return new Point(source.readInt());
+            }
+
+            @Override
+            public Point[] newArray(int size) {
+                return new Point[size];
+            }
+        };
+
+        public int x;
+
+        Point(int x) {
+            this.x = x;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            sWriteCount++;
+            dest.writeInt(x);
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+    }
+
+    public static class Shape extends TrackedModel {
+        @Column("id")
+        public long id;
+        @Column("point")
+        public Point point;
+    }
+
+    @Table("shapes")
+    public interface Shapes {
+        @Query(orderBy = "id")
+        List<Shape> all();
+    }
+
+    public static class Listing {
+        @Column("code")
+        public String code;
+        @Column("group")
+        public long group;
+        @Column("unit price")
+        public double unitPrice;
+        @Column("photo")
+        public byte[] photo;
+        @Column("note")
+        public String note;
+    }
+
+    @Table("listings")
+    public interface Listings {
+    }
+
+    @Table("notes")
+    public interface Notes {
+        @Insert
+        void insert(@Value("body") String body);
+    }
+
+    @Table("notes_fts")
+    @Fts(value = "body", content = "notes")
+    public interface NoteSearch {
+        @Match
+        @Query(select = "notes.id")
+        Single<Long> best(@Where String query);
+    }
+
+    static class TestDatabase extends OwlDatabaseOpenHelper {
+        static volatile long sCreateDelayMillis;
+
+        TestDatabase(Context context, boolean openInBackground, StorageProfile storageProfile) {
+            super(context, DATABASE_NAME, null, 1, openInBackground, storageProfile);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            if (sCreateDelayMillis > 0) {
+                try {
+                    Thread.sleep(sCreateDelayMillis);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            createTable(db, Items.class, column("id", Long.TYPE, PRIMARY_KEY), column("name", String.class));
+            createTable(db, Authors.class, column("id", Long.TYPE, PRIMARY_KEY), column("name", String.class));
+            createTable(db, Posts.class, column("id", Long.TYPE, PRIMARY_KEY), column("author_id", Long.TYPE),
+                    column("title", String.class));
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    private TestDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TestDatabase.sCreateDelayMillis = 0;
+        if (mDatabase != null) {
+            mDatabase.close();
+        }
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private TestDatabase open() {
+        mDatabase = new TestDatabase(getContext(), false, null);
+        return mDatabase;
+    }
+
+    // Runs the call on another thread so that a deadlock fails the test instead of hanging it
+    private static void assertCompletes(long timeoutMillis, final Runnable runnable) throws InterruptedException {
+        final Throwable[] error = new Throwable[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(timeoutMillis);
+        assertFalse("Did not complete in " + timeoutMillis + " ms", thread.isAlive());
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+    }
+
+    public void testQueryWhileOpeningInBackground() throws Exception {
+        TestDatabase.sCreateDelayMillis = 300;
+        mDatabase = new TestDatabase(getContext(), true, new StorageProfile().synchronous(
+                StorageProfile.SYNCHRONOUS_NORMAL).cacheSize(-2000));
+        assertTrue(mDatabase.isOpenPending());
+        final Items items = mDatabase.getTable(Items.class);
+        assertCompletes(5000, new Runnable() {
+            @Override
+            public void run() {
+                assertFalse(items.exists(1));
+                items.insert(1, "a");
+                assertTrue(items.exists(1));
+            }
+        });
+        assertFalse(mDatabase.isOpenPending());
+        assertEquals("1", mDatabase.getEffectivePragmas().get("synchronous"));
+    }
+
+    public void testWalProfileStaysOnOneConnection() throws Exception {
+        mDatabase = new TestDatabase(getContext(), false, new StorageProfile().journalMode(
+                StorageProfile.JOURNAL_MODE_WAL).cacheSize(-4000));
+        assertFalse(mDatabase.getWritableDatabase().isWriteAheadLoggingEnabled());
+        Map<String, String> pragmas = mDatabase.getEffectivePragmas();
+        assertEquals("wal", pragmas.get("journal_mode"));
+        assertEquals("-4000", pragmas.get("cache_size"));
+    }
+
+    public void testIterableLeakedByExitedThread() throws Exception {
+        final Items items = open().getTable(Items.class);
+        items.insert(1, "a");
+        items.insert(2, "b");
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                Iterator<ItemReader> iterator = items.iterate().iterator();
+                assertTrue(iterator.hasNext());
+                assertEquals(1, iterator.next().id());
+            }
+        };
+        thread.start();
+        thread.join();
+        final boolean[] exists = new boolean[1];
+        Thread query = new Thread() {
+            @Override
+            public void run() {
+                exists[0] = items.exists(1);
+            }
+        };
+        query.setDaemon(true);
+        query.start();
+        // The hold is only given back once the abandoned iterator is collected
+        long deadline = System.currentTimeMillis() + 5000;
+        while (query.isAlive() && System.currentTimeMillis() < deadline) {
+            System.gc();
+            query.join(50);
+        }
+        assertFalse("Lock was never released", query.isAlive());
+        assertTrue(exists[0]);
+    }
+
+    public void testWriteWhileIteratingPrefetch() throws Exception {
+        final Items items = open().getTable(Items.class);
+        for (int i = 1; i <= 10; i++) {
+            items.insert(i, "a");
+        }
+        final List<Long> ids = new ArrayList<>();
+        assertCompletes(5000, new Runnable() {
+            @Override
+            public void run() {
+                for (ItemReader item : items.prefetch()) {
+                    ids.add(item.id());
+                    if (item.id() <= 10) {
+                        items.insert(item.id() + 100, "b");
+                    }
+                }
+            }
+        });
+        assertTrue(ids.size() >= 10);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, (long) ids.get(i));
+        }
+    }
+
+    public void testPrefetchInsideTransactionFails() throws Exception {
+        final Items items = open().getTable(Items.class);
+        try {
+            mDatabase.runInTransaction(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return items.prefetch();
+                }
+            });
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    public void testRowCacheSeesWritesThroughOtherInterfaces() throws Exception {
+        open();
+        CachedItems cached = mDatabase.getTable(CachedItems.class);
+        Items items = mDatabase.getTable(Items.class);
+        items.insert(1, "a");
+        List<Long> ids = Collections.singletonList(1L);
+        assertEquals("a", cached.get(ids).get(1L).name);
+
+        items.rename(1, "b");
+        assertEquals("b", cached.get(ids).get(1L).name);
+
+        items.upsert(1, "c");
+        assertEquals("c", cached.get(ids).get(1L).name);
+
+        mDatabase.getWritableDatabase().execSQL("update items set name = 'd' where id = 1");
+        mDatabase.onTableChanged(Items.class);
+        assertEquals("d", cached.get(ids).get(1L).name);
+
+        items.delete(1);
+        assertTrue(cached.get(ids).isEmpty());
+    }
+
+    public void testQueryBuilderRejectsTooManyArguments() throws Exception {
+        open().getTable(Items.class).insert(1, "a");
+        ArrayList<Long> ids = new ArrayList<>();
+        for (long i = 1; i <= 600; i++) {
+            ids.add(i);
+        }
+        assertEquals(1, mDatabase.select(Items.class).where(Predicate.in("id", ids)).count());
+        try {
+            mDatabase.select(Items.class).where(Predicate.in("id", ids)).where(Predicate.in("id", ids)).count();
+            fail("More than " + OwlUtils.MAX_VARIABLE_NUMBER + " arguments were accepted");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    public void testLargeCollectionArguments() throws Exception {
+        final Items items = open().getTable(Items.class);
+        mDatabase.runInTransaction(new Callable<Object>() {
+            @Override
+            public Object call() {
+                for (int i = 1; i <= 1500; i++) {
+                    items.insert(i, "a");
+                }
+                return null;
+            }
+        });
+        ArrayList<Long> ids = new ArrayList<>();
+        for (long i = 1; i <= 1500; i++) {
+            ids.add(i);
+        }
+        for (long i = 1; i <= 100; i++) {
+            ids.add(i);
+        }
+        assertEquals(1500, items.byIds(ids).size());
+        assertEquals(1500, items.countByIds(ids));
+        assertEquals(1500, (int) items.renameAll("a", ids, "b"));
+        assertEquals(0, (int) items.renameAll("a", ids, "b"));
+        try {
+            items.byIdsOrdered(ids);
+            fail("An ordered result was put together from chunks");
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            items.byIdsOrName(ids, "b");
+            fail("A collection under \"or\" was split");
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertEquals(3, items.byIdsOrdered(Arrays.asList(3L, 1L, 2L, 1L)).size());
+    }
+
+    public void testReadOnlyTransactionLeavesDatabaseWritable() throws Exception {
+        final Items items = open().getTable(Items.class);
+        items.insert(1, "a");
+        TestDatabase other = new TestDatabase(getContext(), false, null);
+        try {
+            final Items otherItems = other.getTable(Items.class);
+            assertTrue(otherItems.exists(1));
+            boolean exists = mDatabase.runInTransaction(OwlDatabaseOpenHelper.TRANSACTION_READ_ONLY,
+                    new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            // Fails with SQLITE_BUSY if the read-only transaction took the write lock
+                            otherItems.insert(2, "b");
+                            return items.exists(2);
+                        }
+                    });
+            assertTrue(exists);
+        } finally {
+            other.close();
+        }
+    }
+
+    public void testReadOnlyTransactionDoesNotBlockOtherThreads() throws Exception {
+        final Items items = open().getTable(Items.class);
+        items.insert(1, "a");
+        boolean exists = mDatabase.runInTransaction(OwlDatabaseOpenHelper.TRANSACTION_READ_ONLY,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        assertTrue(items.exists(1));
+                        assertCompletes(2000, new Runnable() {
+                            @Override
+                            public void run() {
+                                items.insert(2, "b");
+                                assertEquals(2, items.all().size());
+                            }
+                        });
+                        return items.exists(2);
+                    }
+                });
+        assertTrue(exists);
+    }
+
+    public void testReadOnlyTransactionRejectsWrites() throws Exception {
+        final Items items = open().getTable(Items.class);
+        try {
+            mDatabase.runInTransaction(OwlDatabaseOpenHelper.TRANSACTION_READ_ONLY, new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return items.insert(1, "a");
+                }
+            });
+            fail("Wrote inside a read-only transaction");
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            mDatabase.runInTransaction(OwlDatabaseOpenHelper.TRANSACTION_READ_ONLY, new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return mDatabase.runInTransaction(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            return null;
+                        }
+                    });
+                }
+            });
+            fail("Started a writable transaction inside a read-only one");
+        } catch (IllegalStateException ignored) {
+        }
+        assertFalse(items.exists(1));
+    }
+
+    public void testReadOnlyTransactionNestedInWriteTransaction() throws Exception {
+        final Items items = open().getTable(Items.class);
+        mDatabase.runInTransaction(OwlDatabaseOpenHelper.TRANSACTION_IMMEDIATE, new Callable<Object>() {
+            @Override
+            public Object call() {
+                items.insert(1, "a");
+                try {
+                    mDatabase.runInTransaction(OwlDatabaseOpenHelper.TRANSACTION_READ_ONLY,
+                            new Callable<Object>() {
+                                @Override
+                                public Object call() {
+                                    assertTrue(items.exists(1));
+                                    return items.insert(2, "b");
+                                }
+                            });
+                    fail("Wrote inside a nested read-only transaction");
+                } catch (IllegalStateException ignored) {
+                }
+                items.insert(3, "c");
+                return null;
+            }
+        });
+        assertTrue(items.exists(1));
+        assertFalse(items.exists(2));
+        assertTrue(items.exists(3));
+    }
+
+    private String nameOf(long id) {
+        for (Item item : mDatabase.getTable(Items.class).all()) {
+            if (item.id == id) return item.name;
+        }
+        return null;
+    }
+
+    public void testReadingTrackedModelsDoesNotMarshall() throws Exception {
+        SQLiteDatabase db = open().getWritableDatabase();
+        db.execSQL("create table shapes(id integer primary key,point blob)");
+        for (int i = 1; i <= 3; i++) {
+            db.execSQL("insert into shapes(id,point) values (?,?)", new Object[]{i, OwlUtils.marshall(new Point(i))});
+        }
+        Point.sWriteCount = 0;
+        List<Shape> shapes = mDatabase.getTable(Shapes.class).all();
+        assertEquals(3, shapes.size());
+        assertEquals(2, shapes.get(1).point.x);
+        assertEquals(0, Point.sWriteCount);
+        Shape shape = shapes.get(0);
+        assertFalse(shape.hasChanges());
+        shape.point.x = 10;
+        assertTrue(shape.hasChanges());
+    }
+
+    public void testUpdateOfNoRowsKeepsModelDirty() throws Exception {
+        Items items = open().getTable(Items.class);
+        items.insert(1, "a");
+        Item item = items.all().get(0);
+        item.name = "b";
+        items.save(2, item);
+        assertTrue(item.hasChanges());
+        items.save(1, item);
+        assertFalse(item.hasChanges());
+        assertEquals("b", nameOf(1));
+    }
+
+    public void testUpdateIsCleanOnlyAfterCommit() throws Exception {
+        final Items items = open().getTable(Items.class);
+        items.insert(1, "a");
+        final Item item = items.all().get(0);
+        item.name = "b";
+        try {
+            mDatabase.runInTransaction(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    items.save(1, item);
+                    assertTrue(item.hasChanges());
+                    throw new IllegalStateException("rollback");
+                }
+            });
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        assertTrue(item.hasChanges());
+        assertEquals("a", nameOf(1));
+
+        mDatabase.runInTransaction(new Callable<Object>() {
+            @Override
+            public Object call() {
+                try {
+                    mDatabase.runInTransaction(new Callable<Object>() {
+                        @Override
+                        public Object call() {
+                            items.save(1, item);
+                            throw new IllegalStateException("rollback");
+                        }
+                    });
+                    fail();
+                } catch (IllegalStateException ignored) {
+                }
+                return null;
+            }
+        });
+        assertTrue(item.hasChanges());
+        assertEquals("a", nameOf(1));
+
+        mDatabase.runInTransaction(new Callable<Object>() {
+            @Override
+            public Object call() {
+                items.save(1, item);
+                // Changed after the write, so still unsaved after the commit
+                item.name = "c";
+                return null;
+            }
+        });
+        assertEquals("b", nameOf(1));
+        assertTrue(item.hasChanges());
+        items.save(1, item);
+        assertFalse(item.hasChanges());
+        assertEquals("c", nameOf(1));
+    }
+
+    public void testRelationsAcrossChunks() throws Exception {
+        SQLiteDatabase db = open().getWritableDatabase();
+        db.execSQL("create table tags(item_id integer not null,label text)");
+        final Items items = mDatabase.getTable(Items.class);
+        mDatabase.runInTransaction(new Callable<Object>() {
+            @Override
+            public Object call() {
+                for (int i = 1; i <= 1200; i++) {
+                    items.insert(i, "a");
+                }
+                return null;
+            }
+        });
+        for (int i = 2; i <= 1200; i += 3) {
+            db.execSQL("insert into tags(item_id,label) values (?,?)", new Object[]{i, "x" + i});
+            db.execSQL("insert into tags(item_id,label) values (?,?)", new Object[]{i, "y" + i});
+        }
+        List<TaggedItem> all = mDatabase.getTable(TaggedItems.class).all();
+        assertEquals(1200, all.size());
+        for (TaggedItem item : all) {
+            if (item.id % 3 == 2) {
+                assertEquals(2, item.tags.size());
+                assertEquals("x" + item.id, item.tags.get(0).label);
+                assertEquals("y" + item.id, item.tags.get(1).label);
+            } else {
+                assertEquals(Collections.<Tag>emptyList(), item.tags);
+            }
+        }
+    }
+
+    public void testJoin() throws Exception {
+        open().getTable(Authors.class).insert(1, "alice");
+        Posts posts = mDatabase.getTable(Posts.class);
+        posts.insert(10, 1, "first");
+        posts.insert(11, 2, "orphan");
+
+        List<PostWithAuthor> withAuthors = posts.withAuthors();
+        assertEquals(2, withAuthors.size());
+        assertEquals(10, withAuthors.get(0).id);
+        assertEquals("first", withAuthors.get(0).title);
+        assertEquals("alice", withAuthors.get(0).authorName);
+        assertEquals(11, withAuthors.get(1).id);
+        assertNull(withAuthors.get(1).authorName);
+
+        Iterator<PostWithAuthorReader> readers = posts.readWithAuthors().iterator();
+        assertTrue(readers.hasNext());
+        assertEquals("alice", readers.next().authorName());
+        assertTrue(readers.hasNext());
+        PostWithAuthorReader reader = readers.next();
+        assertEquals("orphan", reader.title());
+        assertNull(reader.authorName());
+        assertFalse(readers.hasNext());
+
+        // Without a select list nothing is labeled, so "authors.name" falls back to the plain name
+        List<PostWithAuthor> all = posts.allWithAuthors();
+        assertEquals(1, all.size());
+        assertEquals(10, all.get(0).id);
+        assertEquals("alice", all.get(0).authorName);
+    }
+
+    public void testCyclicRelations() throws Exception {
+        SQLiteDatabase db = open().getWritableDatabase();
+        db.execSQL("insert into authors(id) values (1),(2)");
+        db.execSQL("insert into posts(id,author_id) values (10,1),(11,1),(20,2)");
+        List<Author> authors = mDatabase.getTable(Authors.class).all();
+        assertEquals(2, authors.size());
+        Author first = authors.get(0);
+        assertEquals(2, first.posts.size());
+        Post post = first.posts.get(0);
+        assertEquals(10, post.id);
+        assertEquals(1, post.authors.size());
+        Author again = post.authors.get(0);
+        assertEquals(1, again.id);
+        // Already loaded further up, so not loaded again
+        assertNull(again.posts);
+        assertEquals(20, authors.get(1).posts.get(0).id);
+    }
+
+    public void testParallelDecodeKeepsOrder() throws Exception {
+        final Items items = open().getTable(Items.class);
+        assertEquals(Collections.<Item>emptyList(), items.allParallel());
+        mDatabase.runInTransaction(new Callable<Object>() {
+            @Override
+            public Object call() {
+                for (int i = 1; i <= 1000; i++) {
+                    items.insert(i, "item" + i);
+                }
+                return null;
+            }
+        });
+        List<Item> all = items.allParallel();
+        assertEquals(1000, all.size());
+        for (int i = 0; i < 1000; i++) {
+            Item item = all.get(i);
+            assertEquals(i + 1, item.id);
+            assertEquals("item" + (i + 1), item.name);
+            assertFalse(item.hasChanges());
+        }
+    }
+
+    public void testInteractiveCallerGoesFirst() throws Exception {
+        open();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final Callable<Object> record = new Callable<Object>() {
+            @Override
+            public Object call() {
+                order.add(mDatabase.getPriority() == OwlDatabaseOpenHelper.PRIORITY_BACKGROUND ? "background" :
+                        "interactive");
+                return null;
+            }
+        };
+        final Thread background = new Thread() {
+            @Override
+            public void run() {
+                mDatabase.runWithPriority(OwlDatabaseOpenHelper.PRIORITY_BACKGROUND, new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        return mDatabase.runInTransaction(record);
+                    }
+                });
+            }
+        };
+        final Thread interactive = new Thread() {
+            @Override
+            public void run() {
+                mDatabase.runInTransaction(record);
+            }
+        };
+        mDatabase.runInTransaction(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                background.start();
+                Thread.sleep(100);
+                interactive.start();
+                Thread.sleep(100);
+                return null;
+            }
+        });
+        background.join(5000);
+        interactive.join(5000);
+        assertEquals(Arrays.asList("interactive", "background"), order);
+    }
+
+    public void testYieldTransactionLetsInteractiveCallerIn() throws Exception {
+        final Items items = open().getTable(Items.class);
+        final Thread interactive = new Thread() {
+            @Override
+            public void run() {
+                items.insert(2, "b");
+            }
+        };
+        mDatabase.runInTransaction(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                items.insert(1, "a");
+                assertFalse(mDatabase.yieldTransaction());
+                interactive.start();
+                Thread.sleep(100);
+                assertFalse(items.exists(2));
+                assertTrue(mDatabase.yieldTransaction());
+                assertTrue(items.exists(2));
+                return null;
+            }
+        });
+        interactive.join(5000);
+        assertTrue(items.exists(1));
+    }
+
+    public void testWarmUpFailureSurfacesOnFirstUse() throws Exception {
+        final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread.UncaughtExceptionHandler previousHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                uncaught.add(e);
+            }
+        });
+        try {
+            open().warmUp(BrokenItems.class, Items.class);
+            for (int i = 0; i < 100 && !mDatabase.mWarmUpErrors.containsKey(BrokenItems.class); i++) {
+                Thread.sleep(50);
+            }
+            assertTrue(uncaught.isEmpty());
+            RuntimeException warmUpError = mDatabase.mWarmUpErrors.get(BrokenItems.class);
+            assertTrue(warmUpError instanceof IllegalArgumentException);
+            try {
+                mDatabase.getTable(BrokenItems.class);
+                fail();
+            } catch (IllegalArgumentException e) {
+                assertSame(warmUpError, e);
+            }
+            mDatabase.getTable(Items.class).insert(1, "a");
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(previousHandler);
+        }
+    }
+
+    private void awaitBackground() throws Exception {
+        mDatabase.getBackgroundExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    public void testRetentionEnforcedOnFirstUse() throws Exception {
+        Items items = open().getTable(Items.class);
+        for (int i = 1; i <= 8; i++) {
+            items.insert(i, "a");
+        }
+        CappedItems capped = mDatabase.getTable(CappedItems.class);
+        awaitBackground();
+        assertEquals(5, capped.count());
+        assertFalse(items.exists(3));
+        assertTrue(items.exists(4));
+
+        items.insert(9, "a");
+        assertEquals(6, capped.count());
+        final List<Integer> progress = new ArrayList<>();
+        int deleted = mDatabase.enforceRetention(CappedItems.class, new PurgeListener() {
+            @Override
+            public void onProgress(String tableName, int deletedRows, boolean finished) {
+                assertEquals("items", tableName);
+                assertTrue(finished);
+                progress.add(deletedRows);
+            }
+        }).get();
+        assertEquals(1, deleted);
+        assertEquals(Collections.singletonList(1), progress);
+        assertFalse(items.exists(4));
+    }
+
+    public void testPurge() throws Exception {
+        Items items = open().getTable(Items.class);
+        for (int i = 1; i <= 1200; i++) {
+            items.insert(i, i % 2 == 0 ? "even" : "odd");
+        }
+        final List<Integer> progress = new ArrayList<>();
+        int deleted = mDatabase.purge(Items.class, Predicate.eq("name", "odd"), new PurgeListener() {
+            @Override
+            public void onProgress(String tableName, int deletedRows, boolean finished) {
+                progress.add(deletedRows);
+            }
+        }).get();
+        assertEquals(600, deleted);
+        assertEquals(Arrays.asList(500, 600), progress);
+        assertTrue(items.exists(2));
+        assertFalse(items.exists(1));
+        assertFalse(items.exists(1199));
+    }
+
+    public void testExportSnapshot() throws Exception {
+        SQLiteDatabase db = open().getWritableDatabase();
+        db.execSQL("create table listings(code text,\"group\" integer,\"unit price\" real,photo blob,note text)");
+        db.execSQL("insert into listings values ('fr',2,1.5,x'0102',null)");
+        db.execSQL("insert into listings values ('at',1,0.25,null,'it''s')");
+        db.execSQL("insert into listings values ('br',3,2,x'',null)");
+        File file = File.createTempFile("listings", ".owl");
+        try {
+            mDatabase.exportSnapshot(Listings.class, "code", file);
+            Snapshot snapshot = Snapshot.open(file);
+            assertEquals(Arrays.asList("code", "group", "unit price", "photo", "note"),
+                    Arrays.asList(snapshot.getColumnNames()));
+            ArrayList<String> codes = new ArrayList<>();
+            for (Listing listing : snapshot.iterate(Listing.class)) {
+                codes.add(listing.code);
+            }
+            assertEquals(Arrays.asList("at", "br", "fr"), codes);
+
+            Listing at = snapshot.get("at", Listing.class).value;
+            assertEquals(1, at.group);
+            assertEquals(0.25, at.unitPrice, 0);
+            assertNull(at.photo);
+            assertEquals("it's", at.note);
+            Listing br = snapshot.get("br", Listing.class).value;
+            assertEquals(2.0, br.unitPrice, 0);
+            assertEquals(0, br.photo.length);
+            Listing fr = snapshot.get("fr", Listing.class).value;
+            assertTrue(Arrays.equals(new byte[]{1, 2}, fr.photo));
+            assertNull(fr.note);
+            snapshot.close();
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    public void testSnapshotOfChangingTable() throws Exception {
+        SQLiteDatabase db = open().getWritableDatabase();
+        db.execSQL("create table listings(code text,\"group\" integer,\"unit price\" real,photo blob,note text)");
+        db.execSQL("insert into listings(code) values ('a'),('b')");
+        SnapshotWriter.KeyLayout layout;
+        Cursor cursor = db.rawQuery("select typeof(code),code from listings order by code", null);
+        try {
+            layout = SnapshotWriter.scanKeys(cursor, "listings");
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("insert into listings(code) values ('c')");
+        cursor = db.rawQuery("select typeof(code),code,typeof(\"group\"),\"group\",typeof(\"unit price\")," +
+                "\"unit price\",typeof(photo),photo,typeof(note),note from listings order by code", null);
+        File file = File.createTempFile("listings", ".owl");
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        try {
+            SnapshotWriter.writeRows(cursor, "listings", new String[]{"code", "group", "unit price", "photo", "note"},
+                    0, layout, file);
+            fail();
+        } catch (IllegalStateException ignored) {
+        } finally {
+            cursor.close();
+        }
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
 
-public class OwlDatabaseOpenHelperTest extends TestCase {
     public void testBuildPredicate() throws Exception {
         String result = OwlDatabaseOpenHelper.buildPredicate("a = %d, b = %s, c = %s, d = %b, e = %b",
                 new ConstantWhere() {
@@ -30,4 +1031,196 @@ public class OwlDatabaseOpenHelperTest extends TestCase {
                 });
         assertEquals("a = 1234, b = 'a''b', c = 'ab', d = 1, e = 0", result);
     }
-}
\ No newline at end of file
+
+    public void testBuildJoinClause() throws Exception {
+        String result = OwlDatabaseOpenHelper.buildJoinClause("posts", new Join() {
+            @Override
+            public Class<? extends Annotation> annotationType() {
+                return Join.class;
+            }
+
+            @Override
+            public String[] value() {
+                return new String[]{"authors", "images"};
+            }
+
+            @Override
+            public String[] on() {
+                return new String[]{"authors.id = posts.author_id", "images.post_id = posts.id"};
+            }
+
+            @Override
+            public boolean[] left() {
+                return new boolean[]{false, true};
+            }
+        });
+        assertEquals("posts join authors on authors.id = posts.author_id left join images on images.post_id = posts.id",
+                result);
+    }
+
+    public void testLabelQualifiedColumns() throws Exception {
+        String[] result = OwlDatabaseOpenHelper.labelQualifiedColumns(
+                new String[]{"posts.title", "name", "count(*) as total"});
+        assertEquals("posts.title as \"posts$title\"", result[0]);
+        assertEquals("name", result[1]);
+        assertEquals("count(*) as total", result[2]);
+    }
+
+    public void testBuildUpsertSql() throws Exception {
+        String sql = OwlDatabaseOpenHelper.buildUpsertSql("users", Arrays.asList("id", "name", "age"),
+                new String[]{"id"}, Arrays.asList("name", "age"));
+        assertEquals("insert into users(id,name,age) values (?,?,?) on conflict(id) " +
+                "do update set name=excluded.name,age=excluded.age", sql);
+
+        sql = OwlDatabaseOpenHelper.buildUpsertSql("users", Collections.singletonList("id"), new String[]{"id"},
+                Collections.<String>emptyList());
+        assertEquals("insert into users(id) values (?) on conflict(id) do nothing", sql);
+    }
+
+    public void testIsSqliteVersionAtLeast() throws Exception {
+        assertTrue(OwlDatabaseOpenHelper.isSqliteVersionAtLeast("3.28.0", 3, 24));
+        assertTrue(OwlDatabaseOpenHelper.isSqliteVersionAtLeast("3.24.0", 3, 24));
+        assertFalse(OwlDatabaseOpenHelper.isSqliteVersionAtLeast("3.22.0", 3, 24));
+        assertFalse(OwlDatabaseOpenHelper.isSqliteVersionAtLeast("3.8.10.2", 3, 24));
+    }
+
+    public void testBuildFtsSchema() throws Exception {
+        assertEquals(Arrays.asList(
+                "create virtual table posts_fts using fts4(content=\"posts\",title,body)",
+                "create trigger posts_fts_ai after insert on posts begin insert into posts_fts(docid,title,body) " +
+                        "values (new.rowid,new.title,new.body); end",
+                "create trigger posts_fts_bd before delete on posts begin delete from posts_fts where " +
+                        "docid=old.rowid; end",
+                "create trigger posts_fts_bu before update of title,body on posts begin delete from posts_fts " +
+                        "where docid=old.rowid; end",
+                "create trigger posts_fts_au after update of title,body on posts begin insert into posts_fts(" +
+                        "docid,title,body) values (new.rowid,new.title,new.body); end",
+                "insert into posts_fts(posts_fts) values ('rebuild')"),
+                OwlDatabaseOpenHelper.buildFtsSchema("posts_fts", "posts", new String[]{"title", "body"}, true,
+                        true));
+        assertEquals(Arrays.asList(
+                "create virtual table posts_fts using fts3(body)",
+                "create trigger posts_fts_ai after insert on posts begin insert into posts_fts(docid,body) " +
+                        "values (new.rowid,new.body); end",
+                "create trigger posts_fts_bd before delete on posts begin delete from posts_fts where " +
+                        "docid=old.rowid; end",
+                "create trigger posts_fts_bu before update of body on posts begin delete from posts_fts where " +
+                        "docid=old.rowid; end",
+                "create trigger posts_fts_au after update of body on posts begin insert into posts_fts(docid," +
+                        "body) values (new.rowid,new.body); end",
+                "insert into posts_fts(docid,body) select rowid,body from posts"),
+                OwlDatabaseOpenHelper.buildFtsSchema("posts_fts", "posts", new String[]{"body"}, false, false));
+        assertEquals(Collections.singletonList("create virtual table notes using fts4(body)"),
+                OwlDatabaseOpenHelper.buildFtsSchema("notes", null, new String[]{"body"}, true, true));
+    }
+
+    public void testBuildSnippetExpression() throws Exception {
+        assertEquals("snippet(posts_fts,'<b>','</b>','it''s',-1,15)",
+                OwlDatabaseOpenHelper.buildSnippetExpression("posts_fts", "<b>", "</b>", "it's", -1, 15));
+    }
+
+    public void testMatchSingle() throws Exception {
+        SQLiteDatabase db = open().getWritableDatabase();
+        db.execSQL("create table notes(id integer primary key,body text)");
+        mDatabase.createFtsTable(db, NoteSearch.class);
+        Notes notes = mDatabase.getTable(Notes.class);
+        notes.insert("owls hunt at night");
+        notes.insert("owls and more owls");
+        NoteSearch search = mDatabase.getTable(NoteSearch.class);
+        assertEquals(Long.valueOf(2), search.best("owls").value);
+        assertFalse(search.best("crows").hasValue);
+    }
+
+    public void testBuildAggregateExpression() throws Exception {
+        assertEquals("sum(amount)", OwlDatabaseOpenHelper.buildAggregateExpression(Aggregate.SUM, "amount"));
+        assertEquals("count(*)", OwlDatabaseOpenHelper.buildAggregateExpression(Aggregate.COUNT, "*"));
+        assertEquals("count(distinct author)",
+                OwlDatabaseOpenHelper.buildAggregateExpression(Aggregate.COUNT_DISTINCT, "author"));
+        try {
+            OwlDatabaseOpenHelper.buildAggregateExpression(Aggregate.AVG, "*");
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            OwlDatabaseOpenHelper.buildAggregateExpression(Aggregate.MAX, "amount); drop table posts");
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    public void testBuildSummarySchema() throws Exception {
+        assertEquals(Arrays.asList(
+                "create table order_totals(customer,row_count integer not null default 0," +
+                        "sum_amount not null default 0,primary key (customer))",
+                "insert into order_totals(customer,row_count,sum_amount) select customer,count(*)," +
+                        "coalesce(sum(amount),0) from orders group by customer",
+                "create trigger order_totals_ai after insert on orders begin insert into order_totals(customer) " +
+                        "select new.customer where not exists (select 1 from order_totals where customer = " +
+                        "new.customer); update order_totals set row_count=row_count+1," +
+                        "sum_amount=sum_amount+coalesce(new.amount,0) where customer = new.customer; end",
+                "create trigger order_totals_ad after delete on orders begin update order_totals set " +
+                        "row_count=row_count-1,sum_amount=sum_amount-coalesce(old.amount,0) where customer = " +
+                        "old.customer; delete from order_totals where customer = old.customer and row_count=0; end",
+                "create trigger order_totals_au after update of customer,amount on orders begin update " +
+                        "order_totals set row_count=row_count-1,sum_amount=sum_amount-coalesce(old.amount,0) " +
+                        "where customer = old.customer; delete from order_totals where customer = old.customer " +
+                        "and row_count=0; insert into order_totals(customer) select new.customer where not exists " +
+                        "(select 1 from order_totals where customer = new.customer); update order_totals set " +
+                        "row_count=row_count+1,sum_amount=sum_amount+coalesce(new.amount,0) where customer = " +
+                        "new.customer; end"),
+                OwlDatabaseOpenHelper.buildSummarySchema("orders", "order_totals", new String[]{"customer"},
+                        new boolean[]{false}, new String[]{"amount"}));
+    }
+
+    @Table("orders")
+    @Summary(table = "order_totals", groupBy = {"customer", "region"}, sum = "amount")
+    public interface Orders {
+        @Insert
+        void insert(@Value("customer") String customer, @Value("region") String region,
+                    @Value("amount") int amount);
+
+        @Update(where = "customer = ?")
+        void move(@Where String customer, @Value("region") String region);
+    }
+
+    public void testSummaryTracksNullGroups() throws Exception {
+        SQLiteDatabase db = open().getWritableDatabase();
+        db.execSQL("create table orders(customer text not null,region text,amount integer)");
+        mDatabase.createSummaryTable(db, Orders.class);
+        Orders orders = mDatabase.getTable(Orders.class);
+        orders.insert("a", null, 1);
+        orders.insert("a", null, 2);
+        orders.insert("b", "eu", 4);
+        assertEquals("a,,2,3;b,eu,1,4;", summaryRows(db));
+        orders.move("a", "us");
+        assertEquals("a,us,2,3;b,eu,1,4;", summaryRows(db));
+        orders.move("b", null);
+        assertEquals("a,us,2,3;b,,1,4;", summaryRows(db));
+    }
+
+    private static String summaryRows(SQLiteDatabase db) {
+        StringBuilder sb = new StringBuilder();
+        Cursor cursor = db.rawQuery("select customer,region,row_count,sum_amount from order_totals " +
+                "order by customer", null);
+        try {
+            while (cursor.moveToNext()) {
+                sb.append(cursor.getString(0)).append(',').append(cursor.isNull(1) ? "" : cursor.getString(1))
+                        .append(',').append(cursor.getInt(2)).append(',').append(cursor.getInt(3)).append(';');
+            }
+        } finally {
+            cursor.close();
+        }
+        return sb.toString();
+    }
+
+    public void testFindKeyArgument() throws Exception {
+        boolean[] second = {false, true};
+        assertEquals(1, OwlDatabaseOpenHelper.findKeyArgument("external_id = ?", second, "external_id"));
+        assertEquals(1, OwlDatabaseOpenHelper.findKeyArgument("(EXTERNAL_ID==?)", second, "external_id"));
+        assertEquals(-1, OwlDatabaseOpenHelper.findKeyArgument("external_id = ? and deleted = 0", second,
+                "external_id"));
+        assertEquals(-1, OwlDatabaseOpenHelper.findKeyArgument("external_id > ?", second, "external_id"));
+        assertEquals(-1, OwlDatabaseOpenHelper.findKeyArgument("id = ?", second, "external_id"));
+        assertEquals(-1, OwlDatabaseOpenHelper.findKeyArgument(null, new boolean[0], "external_id"));
+    }
+}
@@ -0,0 +1,66 @@
+package ironbreakowl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+public class PagedListTest extends TestCase {
+    private static class CountingLoader implements PagedList.PageLoader<Integer> {
+        final ArrayList<Integer> offsets = new ArrayList<>();
+
+        @Override
+        public List<Integer> load(int offset, int limit) {
+            offsets.add(offset);
+            ArrayList<Integer> rows = new ArrayList<>();
+            for (int i = offset; i < offset + limit; i++) {
+                rows.add(i);
+            }
+            return rows;
+        }
+    }
+
+    private static final Executor NO_PREFETCH = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+        }
+    };
+
+    private static final Executor SYNC_PREFETCH = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    public void testLoadsPagesOnDemand() {
+        CountingLoader loader = new CountingLoader();
+        PagedList<Integer> list = new PagedList<>(loader, 100, 10, 2, NO_PREFETCH);
+        assertEquals(100, list.size());
+        assertEquals(Integer.valueOf(25), list.get(25));
+        assertEquals(Integer.valueOf(27), list.get(27));
+        assertEquals(1, loader.offsets.size());
+        assertEquals(Integer.valueOf(20), loader.offsets.get(0));
+    }
+
+    public void testEvictsLeastRecentlyUsedPage() {
+        CountingLoader loader = new CountingLoader();
+        PagedList<Integer> list = new PagedList<>(loader, 100, 10, 2, NO_PREFETCH);
+        list.get(0);
+        list.get(10);
+        list.get(20);
+        list.get(0);
+        assertEquals(4, loader.offsets.size());
+    }
+
+    public void testPrefetchesNeighbours() {
+        CountingLoader loader = new CountingLoader();
+        PagedList<Integer> list = new PagedList<>(loader, 100, 10, 5, SYNC_PREFETCH);
+        list.get(55);
+        assertEquals(3, loader.offsets.size());
+        list.get(61);
+        list.get(41);
+        assertEquals(5, loader.offsets.size());
+    }
+}
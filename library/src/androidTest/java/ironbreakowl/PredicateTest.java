@@ -0,0 +1,60 @@
+package ironbreakowl;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class PredicateTest extends TestCase {
+    public void testCombine() {
+        Predicate predicate = Predicate.eq("a", 1).and(Predicate.or(Predicate.like("b", "x%"), Predicate.isNull("c")));
+        assertEquals("(a=?) and ((b like ?) or (c is null))", predicate.sql);
+        assertEquals(Arrays.<Object>asList(1, "x%"), predicate.args);
+
+        predicate = Predicate.eq("a", null);
+        assertEquals("a is null", predicate.sql);
+        assertEquals(0, predicate.args.size());
+    }
+
+    public void testInIsPadded() {
+        Predicate predicate = Predicate.in("id", Arrays.asList(1, 2, 3));
+        assertEquals("id in (?,?,?,?)", predicate.sql);
+        assertEquals(Arrays.<Object>asList(1, 2, 3, 3), predicate.args);
+
+        predicate = Predicate.in("id", Arrays.asList(1, 2, 3, 4));
+        assertEquals("id in (?,?,?,?)", predicate.sql);
+
+        predicate = Predicate.in("id", Arrays.asList());
+        assertEquals("0", predicate.sql);
+    }
+
+    public void testInPaddingIsCapped() {
+        ArrayList<Object> values = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            values.add(i);
+        }
+        Predicate predicate = Predicate.in("id", values);
+        assertEquals(OwlUtils.MAX_VARIABLE_NUMBER, predicate.args.size());
+        assertEquals(599, predicate.args.get(OwlUtils.MAX_VARIABLE_NUMBER - 1));
+
+        while (values.size() < OwlUtils.MAX_VARIABLE_NUMBER) {
+            values.add(values.size());
+        }
+        assertEquals(OwlUtils.MAX_VARIABLE_NUMBER, Predicate.in("id", values).args.size());
+
+        values.add(values.size());
+        try {
+            Predicate.in("id", values);
+            fail("Too many values were accepted");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    public void testInvalidColumn() {
+        try {
+            Predicate.eq("a; drop table b", 1);
+            fail("Invalid column name was accepted");
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package ironbreakowl;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+
+public class PrefetchIterableTest extends TestCase {
+    public void testDeliversRowsInOrder() {
+        PrefetchIterable iterable = new PrefetchIterable(new PrefetchIterable.Producer() {
+            @Override
+            public void produce(PrefetchIterable.Sink sink) {
+                for (int i = 0; i < 100; i++) {
+                    if (!sink.put(i)) break;
+                }
+            }
+        }, 4);
+        int expected = 0;
+        for (Object row : iterable) {
+            assertEquals(expected++, row);
+        }
+        assertEquals(100, expected);
+    }
+
+    public void testRethrowsProducerFailure() {
+        PrefetchIterable iterable = new PrefetchIterable(new PrefetchIterable.Producer() {
+            @Override
+            public void produce(PrefetchIterable.Sink sink) {
+                sink.put("a");
+                throw new IllegalStateException("broken");
+            }
+        }, 4);
+        Iterator iterator = iterable.iterator();
+        assertEquals("a", iterator.next());
+        try {
+            iterator.hasNext();
+            fail("Producer failure was swallowed");
+        } catch (IllegalStateException e) {
+            assertEquals("broken", e.getMessage());
+        }
+    }
+
+    public void testCloseStopsProducer() throws Exception {
+        final boolean[] stopped = new boolean[1];
+        PrefetchIterable iterable = new PrefetchIterable(new PrefetchIterable.Producer() {
+            @Override
+            public void produce(PrefetchIterable.Sink sink) {
+                while (sink.put(0)) {
+                }
+                synchronized (stopped) {
+                    stopped[0] = true;
+                    stopped.notifyAll();
+                }
+            }
+        }, 1);
+        iterable.iterator().next();
+        iterable.close();
+        synchronized (stopped) {
+            if (!stopped[0]) {
+                stopped.wait(5000);
+            }
+        }
+        assertTrue(stopped[0]);
+    }
+}
@@ -0,0 +1,178 @@
+package ironbreakowl;
+
+import android.database.MatrixCursor;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SnapshotTest extends TestCase {
+    public static class Place {
+        @Column("code")
+        String code;
+        @Column("name")
+        String name;
+        @Column("population")
+        long population;
+        @Column("area")
+        double area;
+    }
+
+    public interface PlaceReader {
+        @Column("code")
+        String code();
+
+        @Column("population")
+        long population();
+
+        @Column("flag")
+        @IsNull
+        boolean hasNoFlag();
+    }
+
+    private static final String[] COLUMNS = {"code", "name", "population", "area", "flag"};
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("snapshot", ".owl");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    private static MatrixCursor keys(Object[][] rows) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{"typeof(code)", "code"});
+        for (Object[] row : rows) {
+            cursor.addRow(new Object[]{typeOf(row[0]), row[0]});
+        }
+        return cursor;
+    }
+
+    private static MatrixCursor rows(Object[][] rows) {
+        String[] columns = new String[COLUMNS.length * 2];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            columns[i * 2] = "typeof(" + COLUMNS[i] + ")";
+            columns[i * 2 + 1] = COLUMNS[i];
+        }
+        MatrixCursor cursor = new MatrixCursor(columns);
+        for (Object[] row : rows) {
+            Object[] values = new Object[columns.length];
+            for (int i = 0; i < row.length; i++) {
+                values[i * 2] = typeOf(row[i]);
+                values[i * 2 + 1] = row[i];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static String typeOf(Object value) {
+        if (value == null) return "null";
+        if (value instanceof String) return "text";
+        if (value instanceof byte[]) return "blob";
+        if (value instanceof Double) return "real";
+        return "integer";
+    }
+
+    private Snapshot write(Object[][] rows) throws IOException {
+        SnapshotWriter.KeyLayout layout = SnapshotWriter.scanKeys(keys(rows), "places");
+        SnapshotWriter.writeRows(rows(rows), "places", COLUMNS, 0, layout, mFile);
+        return Snapshot.open(mFile);
+    }
+
+    private static final Object[][] PLACES = {
+            {"AT", "Austria", 9000000L, 83879.0, null},
+            {"BE", "Belgium", 11600000L, 30528.0, new byte[]{1, 2}},
+            {"BR", "Brazil", 214000000L, 8515767.0, null},
+            {"FR", "France", 68000000L, 551695.0, new byte[]{3}},
+    };
+
+    public void testGet() throws IOException {
+        Snapshot snapshot = write(PLACES);
+        assertEquals(4, snapshot.size());
+        Single<Place> brazil = snapshot.get("BR", Place.class);
+        assertTrue(brazil.hasValue);
+        assertEquals("Brazil", brazil.value.name);
+        assertEquals(214000000L, brazil.value.population);
+        assertEquals(8515767.0, brazil.value.area, 0);
+        assertFalse(snapshot.get("B", Place.class).hasValue);
+        assertFalse(snapshot.get("ZZ", Place.class).hasValue);
+
+        PlaceReader belgium = snapshot.get("BE", PlaceReader.class).value;
+        assertEquals("BE", belgium.code());
+        assertEquals(11600000L, belgium.population());
+        assertFalse(belgium.hasNoFlag());
+        snapshot.close();
+    }
+
+    public void testRange() throws IOException {
+        Snapshot snapshot = write(PLACES);
+        List<Place> places = snapshot.range("B", "C", Place.class);
+        assertEquals(2, places.size());
+        assertEquals("BE", places.get(0).code);
+        assertEquals("BR", places.get(1).code);
+        assertEquals(4, snapshot.range(null, null, Place.class).size());
+        assertEquals(0, snapshot.range("C", "D", Place.class).size());
+        assertEquals(0, snapshot.range("Z", "A", Place.class).size());
+    }
+
+    public void testIterate() throws IOException {
+        Snapshot snapshot = write(PLACES);
+        ArrayList<String> codes = new ArrayList<>();
+        for (PlaceReader place : snapshot.iterate("AU", null, PlaceReader.class)) {
+            codes.add(place.code() + (place.hasNoFlag() ? "-" : "+"));
+        }
+        assertEquals("[BE+, BR-, FR+]", codes.toString());
+    }
+
+    public void testIntegerKeys() throws IOException {
+        Object[][] rows = {
+                {-5L, "a", 1L, 1.0, null},
+                {3L, "b", 2L, 2.0, null},
+                {3L, "c", 3L, 3.0, null},
+                {1000L, "d", 4L, 4.0, null},
+        };
+        Snapshot snapshot = write(rows);
+        assertEquals("a", snapshot.get(-5, Place.class).value.name);
+        assertEquals("b", snapshot.get(3L, Place.class).value.name);
+        assertEquals(2, snapshot.range(3, 4, Place.class).size());
+        assertFalse(snapshot.get(4, Place.class).hasValue);
+        try {
+            snapshot.get("3", Place.class);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    public void testUnsortedKeysAreRejected() {
+        Object[][] rows = {
+                {"b", "b", 1L, 1.0, null},
+                {"a", "a", 1L, 1.0, null},
+        };
+        try {
+            write(rows);
+            fail();
+        } catch (IllegalStateException ignored) {
+        } catch (IOException e) {
+            fail();
+        }
+    }
+
+    public void testClosedSnapshot() throws IOException {
+        Snapshot snapshot = write(PLACES);
+        snapshot.close();
+        try {
+            snapshot.get("AT", Place.class);
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+}
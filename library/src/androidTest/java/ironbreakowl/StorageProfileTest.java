@@ -0,0 +1,55 @@
+package ironbreakowl;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class StorageProfileTest extends TestCase {
+    @Pragmas(journalMode = "wal", synchronous = "normal", cacheSize = -8000, pageSize = 8192)
+    private static class Annotated {
+    }
+
+    public void testStatements() {
+        StorageProfile profile = new StorageProfile()
+                .journalMode("truncate")
+                .synchronous(StorageProfile.SYNCHRONOUS_NORMAL)
+                .cacheSize(-4000)
+                .mmapSize(1 << 20)
+                .pageSize(4096)
+                .tempStore("memory")
+                .walAutoCheckpoint(500);
+        assertEquals("TRUNCATE", profile.getJournalMode());
+        assertEquals(Arrays.asList("PRAGMA page_size=4096", "PRAGMA synchronous=NORMAL",
+                "PRAGMA cache_size=-4000", "PRAGMA mmap_size=1048576", "PRAGMA temp_store=MEMORY",
+                "PRAGMA wal_autocheckpoint=500"), profile.toStatements());
+    }
+
+    public void testFromAnnotation() {
+        StorageProfile profile = StorageProfile.from(Annotated.class.getAnnotation(Pragmas.class));
+        assertEquals(StorageProfile.JOURNAL_MODE_WAL, profile.getJournalMode());
+        assertEquals(Long.valueOf(-8000), profile.getCacheSize());
+        assertNull(profile.getMmapSize());
+        assertEquals(Arrays.asList("PRAGMA page_size=8192", "PRAGMA synchronous=NORMAL",
+                "PRAGMA cache_size=-8000"), profile.toStatements());
+        assertNull(StorageProfile.from(null));
+        assertTrue(new StorageProfile().isEmpty());
+    }
+
+    public void testInvalidValues() {
+        try {
+            new StorageProfile().journalMode("fast");
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            new StorageProfile().pageSize(3000);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            new StorageProfile().tempStore(null);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+}
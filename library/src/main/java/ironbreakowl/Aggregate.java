@@ -0,0 +1,23 @@
+package ironbreakowl;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Aggregate {
+    int SUM = 0;
+    int MIN = 1;
+    int MAX = 2;
+    int AVG = 3;
+    int COUNT = 4;
+    int COUNT_DISTINCT = 5;
+
+    int function();
+    String column() default "*";
+    String where() default "";
+    String groupBy() default "";
+    String having() default "";
+}
@@ -0,0 +1,76 @@
+package ironbreakowl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+class BloomBitSet {
+    private static final long MAX_BITS = 1L << 30;
+    private static final double LN2 = Math.log(2);
+
+    private final AtomicLongArray mWords;
+    private final long mBitCount;
+    private final int mHashCount;
+
+    BloomBitSet(long expectedItems, double falsePositiveRate) {
+        long items = Math.max(1, expectedItems);
+        long bits = (long) Math.ceil(-items * Math.log(falsePositiveRate) / (LN2 * LN2));
+        bits = Math.min(MAX_BITS, Math.max(64, (bits + 63) & ~63L));
+        mWords = new AtomicLongArray((int) (bits >>> 6));
+        mBitCount = bits;
+        mHashCount = (int) Math.max(1, Math.min(16, Math.round((double) bits / items * LN2)));
+    }
+
+    long getBitCount() {
+        return mBitCount;
+    }
+
+    int getHashCount() {
+        return mHashCount;
+    }
+
+    // Writers and readers don't share a lock, so bits are set with CAS
+    void put(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < mHashCount; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % mBitCount;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            while (true) {
+                long old = mWords.get(word);
+                if ((old & mask) != 0 || mWords.compareAndSet(word, old, old | mask)) break;
+            }
+        }
+    }
+
+    boolean mightContain(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1 ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < mHashCount; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % mBitCount;
+            if ((mWords.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a over the UTF-16 code units, then a murmur3 finalizer to spread the bits
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, length = key.length(); i < length; i++) {
+            char c = key.charAt(i);
+            h = (h ^ (c & 0xff)) * 0x100000001b3L;
+            h = (h ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
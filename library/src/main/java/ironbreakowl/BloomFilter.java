@@ -0,0 +1,14 @@
+package ironbreakowl;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface BloomFilter {
+    String value();
+    long expectedRows() default 10000;
+    double falsePositiveRate() default 0.01;
+}
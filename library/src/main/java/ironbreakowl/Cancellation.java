@@ -0,0 +1,90 @@
+package ironbreakowl;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.OperationCanceledException;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// The caller's token and the @Query timeout of one call, merged into a single token
+class Cancellation {
+    private static ScheduledExecutorService sTimer;
+
+    final CancellationToken token;
+    private final CancellationToken mParent;
+    private final ScheduledFuture<?> mTimeout;
+
+    private Cancellation(CancellationToken token, CancellationToken parent, ScheduledFuture<?> timeout) {
+        this.token = token;
+        mParent = parent;
+        mTimeout = timeout;
+    }
+
+    static Cancellation begin(CancellationToken callerToken, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return new Cancellation(callerToken, null, null);
+        }
+        final CancellationToken token = new CancellationToken();
+        if (callerToken != null) {
+            callerToken.link(token);
+        }
+        ScheduledFuture<?> timeout = getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                token.cancel();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        return new Cancellation(token, callerToken, timeout);
+    }
+
+    void throwIfCancelled() {
+        if (token != null) {
+            token.throwIfCancelled();
+        }
+    }
+
+    void finish() {
+        if (mTimeout != null) {
+            mTimeout.cancel(false);
+        }
+        if (mParent != null) {
+            mParent.unlink(token);
+        }
+    }
+
+    // SQLite reports cancellation with a class that only exists from Jelly Bean on
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    static RuntimeException translate(RuntimeException e) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && e instanceof OperationCanceledException) {
+            CancellationException cancelled = new CancellationException("The query was cancelled");
+            cancelled.initCause(e);
+            return cancelled;
+        }
+        return e;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "OwlTimeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                timer.setRemoveOnCancelPolicy(true);
+            }
+            sTimer = timer;
+        }
+        return sTimer;
+    }
+}
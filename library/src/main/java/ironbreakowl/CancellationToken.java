@@ -0,0 +1,86 @@
+package ironbreakowl;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+public final class CancellationToken {
+    private boolean mCancelled;
+    private Object mSignal;
+    private ArrayList<CancellationToken> mLinked;
+
+    public void cancel() {
+        Object signal;
+        ArrayList<CancellationToken> linked;
+        synchronized (this) {
+            if (mCancelled) return;
+            mCancelled = true;
+            signal = mSignal;
+            linked = mLinked;
+            mLinked = null;
+        }
+        if (signal != null) {
+            cancelSignal(signal);
+        }
+        if (linked != null) {
+            for (CancellationToken token : linked) {
+                token.cancel();
+            }
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("The query was cancelled");
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void cancelSignal(Object signal) {
+        ((CancellationSignal) signal).cancel();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    CancellationSignal getSignal() {
+        CancellationSignal signal;
+        boolean cancelled;
+        synchronized (this) {
+            if (mSignal == null) {
+                mSignal = new CancellationSignal();
+            }
+            signal = (CancellationSignal) mSignal;
+            cancelled = mCancelled;
+        }
+        if (cancelled) {
+            signal.cancel();
+        }
+        return signal;
+    }
+
+    // Cancelling this token cancels the other one too
+    void link(CancellationToken other) {
+        synchronized (this) {
+            if (!mCancelled) {
+                if (mLinked == null) {
+                    mLinked = new ArrayList<>();
+                }
+                mLinked.add(other);
+                return;
+            }
+        }
+        other.cancel();
+    }
+
+    synchronized void unlink(CancellationToken other) {
+        if (mLinked != null) {
+            mLinked.remove(other);
+        }
+    }
+}
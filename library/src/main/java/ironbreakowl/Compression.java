@@ -0,0 +1,94 @@
+package ironbreakowl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+class Compression {
+    static final int THRESHOLD = 256;
+
+    private static final byte MAGIC_0 = (byte) 0xC0;
+    private static final byte MAGIC_1 = (byte) 0x7A;
+    private static final byte CODEC_NONE = 0;
+    private static final byte CODEC_DEFLATE = 1;
+    private static final int HEADER_LENGTH = 3;
+
+    // Returns the input as is when it is below the threshold or doesn't shrink, unless it starts like a header
+    static byte[] compress(byte[] bytes) {
+        if (bytes.length < THRESHOLD) {
+            return escape(bytes);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + HEADER_LENGTH);
+            out.write(MAGIC_0);
+            out.write(MAGIC_1);
+            out.write(CODEC_DEFLATE);
+            byte[] buffer = new byte[Math.min(bytes.length, 8192)];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+                if (out.size() >= bytes.length) {
+                    return escape(bytes);
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // A raw value that starts like a header goes behind a header of its own, so it is never taken for compressed data
+    private static byte[] escape(byte[] bytes) {
+        if (!hasMagic(bytes)) {
+            return bytes;
+        }
+        byte[] escaped = new byte[bytes.length + HEADER_LENGTH];
+        escaped[0] = MAGIC_0;
+        escaped[1] = MAGIC_1;
+        escaped[2] = CODEC_NONE;
+        System.arraycopy(bytes, 0, escaped, HEADER_LENGTH, bytes.length);
+        return escaped;
+    }
+
+    private static boolean hasMagic(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1;
+    }
+
+    static boolean isCompressed(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && hasMagic(bytes) && bytes[2] == CODEC_DEFLATE;
+    }
+
+    // Rows written without compression have no header and are returned as is
+    static byte[] decompress(byte[] bytes) {
+        if (bytes.length >= HEADER_LENGTH && hasMagic(bytes) && bytes[2] == CODEC_NONE) {
+            return Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length);
+        }
+        if (!isCompressed(bytes)) {
+            return bytes;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated stream: a value written before raw values were escaped that starts with the header
+                    return bytes;
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            return bytes;
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package ironbreakowl;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+class CursorHandle extends PhantomReference<Object> {
+    private static final ReferenceQueue<Object> sQueue = new ReferenceQueue<>();
+    private static final Set<CursorHandle> sLiveHandles =
+            Collections.newSetFromMap(new ConcurrentHashMap<CursorHandle, Boolean>());
+
+    static {
+        Thread reaper = new Thread("OwlCursorReaper") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        ((CursorHandle) sQueue.remove()).reap();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private Cursor mCursor;
+    private final OwlDatabaseOpenHelper mOpenHelper;
+    final Thread owner;
+    private final Throwable mCreationSite;
+
+    // Takes a cursor hold on the helper, which keeps other threads out until the handle is closed or reaped
+    CursorHandle(Object referent, Cursor cursor, OwlDatabaseOpenHelper openHelper) {
+        super(referent, sQueue);
+        mCursor = cursor;
+        mOpenHelper = openHelper;
+        owner = Thread.currentThread();
+        mCreationSite = new Throwable("Cursor was opened here");
+        openHelper.acquireCursorHold();
+        sLiveHandles.add(this);
+    }
+
+    void close() {
+        if (release()) {
+            mOpenHelper.releaseCursorHold();
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return mCursor == null;
+    }
+
+    private synchronized boolean release() {
+        if (mCursor == null) {
+            return false;
+        }
+        mCursor.close();
+        mCursor = null;
+        clear();
+        sLiveHandles.remove(this);
+        return true;
+    }
+
+    // Runs on the reaper thread; the hold is not tied to the owning thread, which may be gone by now
+    private void reap() {
+        if (release()) {
+            Log.w(OwlUtils.TAG, "A cursor was abandoned without being closed", mCreationSite);
+            mOpenHelper.releaseCursorHold();
+        }
+    }
+
+    static void closeAll(OwlDatabaseOpenHelper openHelper, Thread owner) {
+        for (CursorHandle handle : sLiveHandles) {
+            if (handle.mOpenHelper == openHelper && handle.owner == owner) {
+                handle.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package ironbreakowl;
+
+import java.io.Closeable;
+
+public interface CursorIterable<T> extends Iterable<T>, Closeable {
+    @Override
+    void close();
+}
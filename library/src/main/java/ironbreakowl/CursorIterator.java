@@ -5,28 +5,47 @@ import android.database.Cursor;
 import java.util.Iterator;
 
 class CursorIterator implements Iterator {
-    private Cursor mCursor;
-    private Object mCursorReader;
-    private final OwlDatabaseOpenHelper mOpenHelper;
+    private CursorHandle mHandle;
+    private final Cursor mCursor;
+    private final Object mCursorReader;
+    private final Cancellation mCancellation;
 
     CursorIterator(Cursor cursor, Object cursorReader, OwlDatabaseOpenHelper openHelper) {
+        this(cursor, cursorReader, openHelper, null);
+    }
+
+    CursorIterator(Cursor cursor, Object cursorReader, OwlDatabaseOpenHelper openHelper,
+                   Cancellation cancellation) {
         mCursor = cursor;
         mCursorReader = cursorReader;
-        mOpenHelper = openHelper;
+        mCancellation = cancellation;
         if (cursor != null) {
-            openHelper.mLock.lock();
-            openHelper.addCursorIterator(this);
+            openHelper.lock();
+            try {
+                mHandle = new CursorHandle(this, cursor, openHelper);
+            } finally {
+                openHelper.mLock.unlock();
+            }
         }
     }
 
     @Override
     public boolean hasNext() {
-        if (mCursor == null) {
+        if (mHandle == null || mHandle.isClosed()) {
             return false;
         }
-        boolean hasNext = mCursor.moveToNext();
+        boolean hasNext;
+        try {
+            if (mCancellation != null) {
+                mCancellation.throwIfCancelled();
+            }
+            hasNext = mCursor.moveToNext();
+        } catch (RuntimeException e) {
+            close();
+            throw Cancellation.translate(e);
+        }
         if (!hasNext) {
-            close(true);
+            close();
         }
         return hasNext;
     }
@@ -41,23 +60,13 @@ class CursorIterator implements Iterator {
         throw new UnsupportedOperationException();
     }
 
-    @Override
-    protected void finalize() throws Throwable {
-        try {
-            close(false);
-        } finally {
-            super.finalize();
+    void close() {
+        if (mHandle != null) {
+            mHandle.close();
+            mHandle = null;
         }
-    }
-
-    void close(boolean unlock) {
-        if (mCursor != null) {
-            mCursor.close();
-            mCursor = null;
-            mOpenHelper.removeCursorIterator(this);
-            if (unlock) {
-                mOpenHelper.mLock.unlock();
-            }
+        if (mCancellation != null) {
+            mCancellation.finish();
         }
     }
 }
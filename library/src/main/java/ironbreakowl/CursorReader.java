@@ -7,9 +7,11 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class CursorReader {
-    private static final HashMap<Class, CursorReader> sReaders = new HashMap<>();
+    private static final ConcurrentHashMap<Class, CursorReader> sReaders = new ConcurrentHashMap<>();
 
     private static final int LOGIC_READ_VALUE = 0;
     private static final int LOGIC_INVESTIGATE_NULL = 1;
@@ -17,6 +19,7 @@ class CursorReader {
 
     private static class MethodInfo {
         public Column column;
+        public String columnLabel;
         public Class returnType;
         public int logic;
         public Parcelable.Creator parcelCreator;
@@ -31,36 +34,63 @@ class CursorReader {
             @Override
             public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
                 MethodInfo methodInfo = cr.methods.get(method);
-                String columnName = methodInfo.column.value();
-                Class returnType = methodInfo.returnType;
-                int columnIndex = cursor.getColumnIndex(columnName);
-                int logic = methodInfo.logic;
-                switch (logic) {
-                    case LOGIC_READ_VALUE:
-                    default:
-                        return OwlUtils.readValue(cursor, columnIndex, returnType, methodInfo.parcelCreator);
-                    case LOGIC_INVESTIGATE_NULL:
-                    case LOGIC_INVESTIGATE_NOT_NULL:
-                        if (returnType != Boolean.TYPE && returnType != Boolean.class) {
-                            throw new IllegalArgumentException("Only boolean type is allowed for @IsNull or " +
-                                    "@IsNotNull");
-                        }
-                        boolean isNull = cursor.isNull(columnIndex);
-                        return logic == LOGIC_INVESTIGATE_NULL ? isNull : !isNull;
+                int columnIndex = OwlUtils.getColumnIndex(cursor, methodInfo.column.value(), methodInfo.columnLabel);
+                return read(cursor, columnIndex, methodInfo);
+            }
+        });
+    }
+
+    public static <T> T snapshot(Cursor cursor, Class<T> clazz) {
+        final CursorReader cr = getReader(clazz);
+        final HashMap<Method, Object> values = new HashMap<>();
+        for (Map.Entry<Method, MethodInfo> entry : cr.methods.entrySet()) {
+            MethodInfo methodInfo = entry.getValue();
+            int columnIndex = OwlUtils.getColumnIndex(cursor, methodInfo.column.value(), methodInfo.columnLabel);
+            if (columnIndex >= 0) {
+                values.put(entry.getKey(), read(cursor, columnIndex, methodInfo));
+            }
+        }
+        //noinspection unchecked
+        return (T) Proxy.newProxyInstance(clazz.getClassLoader(), new Class[]{clazz}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (!values.containsKey(method)) {
+                    throw new IllegalStateException("Column was not selected: " + cr.methods.get(method).column.value());
                 }
+                return values.get(method);
             }
         });
     }
 
-    private static CursorReader getReader(Class clazz) {
-        synchronized (sReaders) {
-            CursorReader reader = sReaders.get(clazz);
-            if (reader == null) {
-                reader = parseClass(clazz);
-                sReaders.put(clazz, reader);
+    private static Object read(Cursor cursor, int columnIndex, MethodInfo methodInfo) {
+        Class returnType = methodInfo.returnType;
+        int logic = methodInfo.logic;
+        switch (logic) {
+            case LOGIC_READ_VALUE:
+            default:
+                return OwlUtils.readValue(cursor, columnIndex, returnType, methodInfo.parcelCreator,
+                        methodInfo.column.compress());
+            case LOGIC_INVESTIGATE_NULL:
+            case LOGIC_INVESTIGATE_NOT_NULL:
+                if (returnType != Boolean.TYPE && returnType != Boolean.class) {
+                    throw new IllegalArgumentException("Only boolean type is allowed for @IsNull or " +
+                            "@IsNotNull");
+                }
+                boolean isNull = cursor.isNull(columnIndex);
+                return logic == LOGIC_INVESTIGATE_NULL ? isNull : !isNull;
+        }
+    }
+
+    static CursorReader getReader(Class clazz) {
+        CursorReader reader = sReaders.get(clazz);
+        if (reader == null) {
+            reader = parseClass(clazz);
+            CursorReader existing = sReaders.putIfAbsent(clazz, reader);
+            if (existing != null) {
+                reader = existing;
             }
-            return reader;
         }
+        return reader;
     }
 
     private static CursorReader parseClass(Class clazz) {
@@ -76,6 +106,7 @@ class CursorReader {
             MethodInfo methodInfo = new MethodInfo();
             Class<?> returnType = method.getReturnType();
             methodInfo.column = column;
+            methodInfo.columnLabel = OwlUtils.columnLabel(column.value());
             methodInfo.returnType = returnType;
             if (Parcelable.class.isAssignableFrom(returnType)) {
                 methodInfo.parcelCreator = OwlUtils.getParcelCreator(returnType);
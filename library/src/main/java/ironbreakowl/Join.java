@@ -0,0 +1,14 @@
+package ironbreakowl;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Join {
+    String[] value();
+    String[] on();
+    boolean[] left() default {};
+}
@@ -0,0 +1,288 @@
+package ironbreakowl;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps a Bloom filter of one column's values so "does this key exist" queries can answer false without SQLite.
+// Deleted keys stay in the filter until the next rebuild, which only costs false positives.
+class KeyFilter implements Runnable {
+    private static final int BUILD_CHUNK_SIZE = 1000;
+
+    final String column;
+    private final String mTableName;
+    private final long mExpectedRows;
+    private final double mFalsePositiveRate;
+    private final OwlDatabaseOpenHelper mOpenHelper;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final AtomicLong mAdded = new AtomicLong();
+    private final AtomicLong mDeleted = new AtomicLong();
+    private volatile BloomBitSet mFilter;
+    private volatile BloomBitSet mBuilding;
+    private volatile long mCapacity;
+    private volatile boolean mDisabled;
+
+    KeyFilter(OwlDatabaseOpenHelper openHelper, String tableName, String column, long expectedRows,
+              double falsePositiveRate) {
+        mOpenHelper = openHelper;
+        mTableName = tableName;
+        this.column = column;
+        mExpectedRows = expectedRows;
+        mFalsePositiveRate = falsePositiveRate;
+    }
+
+    boolean mightContain(Object value) {
+        BloomBitSet filter = mFilter;
+        if (filter == null) return true;
+        String key = queryKey(value);
+        return key == null || filter.mightContain(key);
+    }
+
+    // Called with the lock held, right after the row went in
+    void onInserted(SQLiteDatabase db, ContentValues values, long rowId) {
+        if (values.containsKey(column)) {
+            add(values.get(column));
+        } else if (rowId != -1) {
+            // Default value or rowid alias
+            Cursor cursor = db.rawQuery("select " + column + " from " + mTableName + " where rowid=" + rowId, null);
+            try {
+                if (cursor.moveToNext() && !cursor.isNull(0)) {
+                    add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        } else {
+            invalidate();
+        }
+    }
+
+    void onUpdated(ContentValues values, int rows) {
+        if (rows > 0 && values.containsKey(column)) {
+            add(values.get(column));
+            onDeleted(rows);
+        }
+    }
+
+    void onDeleted(int rows) {
+        if (rows > 0 && mDeleted.addAndGet(rows) > mCapacity / 4) {
+            schedule();
+        }
+    }
+
+    private void add(Object value) {
+        // mBuilding first: the builder publishes mFilter before it clears mBuilding
+        BloomBitSet building = mBuilding;
+        BloomBitSet filter = mFilter;
+        if (value == null) return;
+        if (!isSupportedKey(value)) {
+            disable("Unsupported key type " + value.getClass().getName());
+            return;
+        }
+        if (building != null) {
+            putKeys(building, value);
+        }
+        if (filter != null) {
+            putKeys(filter, value);
+        }
+        if (filter == null || mAdded.incrementAndGet() > mCapacity) {
+            schedule();
+        }
+    }
+
+    void invalidate() {
+        mGeneration.incrementAndGet();
+        mFilter = null;
+        schedule();
+    }
+
+    private void disable(String reason) {
+        if (!mDisabled) {
+            Log.w(OwlUtils.TAG, "Bloom filter on " + mTableName + '.' + column + " turned off: " + reason);
+        }
+        mDisabled = true;
+        mFilter = null;
+    }
+
+    void schedule() {
+        if (!mDisabled && mScheduled.compareAndSet(false, true)) {
+            mOpenHelper.getBackgroundExecutor().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean again = false;
+        try {
+            again = !build();
+        } catch (RuntimeException e) {
+            disable(e.toString());
+        } finally {
+            mScheduled.set(false);
+        }
+        if (again) {
+            schedule();
+        }
+    }
+
+    // Streams the column in rowid order, a chunk per lock acquisition. Writes in the meantime go into both the old
+    // and the new filter, so nothing is missed; returns false if an invalidation raced with the build.
+    private boolean build() {
+        int generation = mGeneration.get();
+        long rowCount;
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            String schema = readSchema(db);
+            if (schema == null) {
+                // Not created yet; the first insert brings us back here
+                return true;
+            }
+            schema = schema.toLowerCase(Locale.US);
+            if (schema.contains("collate") || schema.contains("without rowid")) {
+                disable("collations and WITHOUT ROWID tables are not supported");
+                return true;
+            }
+            SQLiteStatement count = db.compileStatement("select count(*) from " + mTableName);
+            try {
+                rowCount = count.simpleQueryForLong();
+            } finally {
+                count.close();
+            }
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+
+        long capacity = Math.max(mExpectedRows, rowCount * 2);
+        BloomBitSet building = new BloomBitSet(capacity, mFalsePositiveRate);
+        String sql = "select rowid, " + column + " from " + mTableName + " where rowid>? order by rowid limit " +
+                BUILD_CHUNK_SIZE;
+        long lastRowId = Long.MIN_VALUE;
+        long added = 0;
+        mBuilding = building;
+        try {
+            while (true) {
+                mOpenHelper.lock();
+                try {
+                    Cursor cursor = mOpenHelper.rawQuery(mOpenHelper.getReadableDatabase(), sql,
+                            new Object[]{lastRowId}, mTableName);
+                    int read = 0;
+                    try {
+                        while (cursor.moveToNext()) {
+                            lastRowId = cursor.getLong(0);
+                            read++;
+                            if (!cursor.isNull(1)) {
+                                putKeys(building, cursor.getString(1));
+                                added++;
+                            }
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    if (read < BUILD_CHUNK_SIZE) {
+                        if (mDisabled) return true;
+                        if (mGeneration.get() != generation) return false;
+                        mCapacity = capacity;
+                        mAdded.set(added);
+                        mDeleted.set(0);
+                        mFilter = building;
+                        return true;
+                    }
+                } finally {
+                    mOpenHelper.mLock.unlock();
+                }
+            }
+        } finally {
+            mBuilding = null;
+        }
+    }
+
+    private String readSchema(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("select sql from sqlite_master where type='table' and name=?",
+                new String[]{mTableName});
+        try {
+            return cursor.moveToNext() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    static boolean isSupportedKey(Object value) {
+        return value instanceof String || value instanceof Number || value instanceof Boolean;
+    }
+
+    // SQLite compares across storage classes through column affinity, so a stored key is added in every form an
+    // equal query argument can take: 5, 5.0 and '5' all end up as "5"
+    static void putKeys(BloomBitSet filter, Object value) {
+        if (value instanceof Boolean) {
+            filter.put((Boolean) value ? "1" : "0");
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            filter.put(String.valueOf(d));
+            String integral = integralKey(d);
+            if (integral != null) {
+                filter.put(integral);
+            }
+        } else if (value instanceof Number) {
+            filter.put(String.valueOf(((Number) value).longValue()));
+        } else {
+            String s = value.toString();
+            filter.put(s);
+            Double d = parseNumber(s);
+            if (d != null) {
+                String integral = integralKey(d);
+                if (integral != null) {
+                    filter.put(integral);
+                }
+            }
+        }
+    }
+
+    // Returns null when the argument has no single canonical form, in which case SQLite has to answer
+    static String queryKey(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "1" : "0";
+        } else if (value instanceof Double || value instanceof Float) {
+            return integralKey(((Number) value).doubleValue());
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                value instanceof Byte) {
+            return String.valueOf(((Number) value).longValue());
+        } else if (value instanceof String) {
+            String s = (String) value;
+            Double d = parseNumber(s);
+            if (d != null && !s.equals(integralKey(d))) {
+                return null;
+            }
+            return s;
+        }
+        return null;
+    }
+
+    private static String integralKey(double d) {
+        if (d != Math.rint(d) || Math.abs(d) >= 0x1p63) {
+            return null;
+        }
+        return String.valueOf((long) d);
+    }
+
+    private static Double parseNumber(String s) {
+        String trimmed = s.trim();
+        if (trimmed.isEmpty()) return null;
+        char c = trimmed.charAt(trimmed.length() - 1);
+        // Java also takes type suffixes such as 1d and 1f, which SQLite reads as text
+        if (c != '.' && (c < '0' || c > '9')) return null;
+        try {
+            return Double.parseDouble(trimmed);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
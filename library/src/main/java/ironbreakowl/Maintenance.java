@@ -0,0 +1,167 @@
+package ironbreakowl;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+class Maintenance implements Runnable {
+    private final OwlDatabaseOpenHelper mOpenHelper;
+    private final ConcurrentHashMap<String, AtomicLong> mTableWrites = new ConcurrentHashMap<>();
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicLong mDeletes = new AtomicLong();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile MaintenancePolicy mPolicy = new MaintenancePolicy();
+    // Only touched on the background thread
+    private boolean mOptimizePending;
+
+    Maintenance(OwlDatabaseOpenHelper openHelper) {
+        mOpenHelper = openHelper;
+    }
+
+    void setPolicy(MaintenancePolicy policy) {
+        mPolicy = policy;
+    }
+
+    MaintenancePolicy getPolicy() {
+        return mPolicy;
+    }
+
+    void recordWrites(String tableName, int rows, boolean deleted) {
+        MaintenancePolicy policy = mPolicy;
+        if (policy == null || rows <= 0) return;
+        AtomicLong tableWrites = mTableWrites.get(tableName);
+        if (tableWrites == null) {
+            AtomicLong newTableWrites = new AtomicLong();
+            tableWrites = mTableWrites.putIfAbsent(tableName, newTableWrites);
+            if (tableWrites == null) {
+                tableWrites = newTableWrites;
+            }
+        }
+        boolean due = tableWrites.addAndGet(rows) >= policy.getAnalyzeThreshold();
+        due |= mWrites.addAndGet(rows) >= policy.getCheckpointThreshold();
+        if (deleted) {
+            due |= mDeletes.addAndGet(rows) >= policy.getVacuumThreshold();
+        }
+        if (due) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            mOpenHelper.getBackgroundExecutor().execute(this);
+        }
+    }
+
+    // Each run does one step and queues the next one, so other background work and the lock get a turn in between
+    @Override
+    public void run() {
+        boolean more = false;
+        try {
+            more = step();
+        } catch (RuntimeException e) {
+            Log.w(OwlUtils.TAG, "Database maintenance failed", e);
+        } finally {
+            mScheduled.set(false);
+        }
+        if (more) {
+            schedule();
+        }
+    }
+
+    // Counters are reset before the work so a failing step is not retried on every write
+    private boolean step() {
+        MaintenancePolicy policy = mPolicy;
+        if (policy == null) return false;
+        for (Map.Entry<String, AtomicLong> entry : mTableWrites.entrySet()) {
+            AtomicLong writes = entry.getValue();
+            long count = writes.get();
+            if (count >= policy.getAnalyzeThreshold()) {
+                writes.addAndGet(-count);
+                mOptimizePending = true;
+                analyze(entry.getKey());
+                return true;
+            }
+        }
+        if (mOptimizePending) {
+            mOptimizePending = false;
+            optimize();
+            return true;
+        }
+        long writes = mWrites.get();
+        if (writes >= policy.getCheckpointThreshold()) {
+            mWrites.addAndGet(-writes);
+            checkpoint();
+            return true;
+        }
+        long deletes = mDeletes.get();
+        if (deletes >= policy.getVacuumThreshold()) {
+            if (!vacuumStep(policy.getVacuumStepPages())) {
+                mDeletes.addAndGet(-deletes);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void analyze(String tableName) {
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            if (mOpenHelper.isSqliteVersionAtLeast(db, 3, 32)) {
+                // Samples instead of scanning whole indexes so the lock is held briefly
+                OwlDatabaseOpenHelper.executePragma(db, "PRAGMA analysis_limit=400");
+            }
+            db.execSQL("ANALYZE " + tableName);
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+    }
+
+    private void optimize() {
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            if (mOpenHelper.isSqliteVersionAtLeast(db, 3, 18)) {
+                OwlDatabaseOpenHelper.executePragma(db, "PRAGMA optimize");
+            }
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+    }
+
+    private void checkpoint() {
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            if ("wal".equalsIgnoreCase(OwlDatabaseOpenHelper.executePragma(db, "PRAGMA journal_mode"))) {
+                OwlDatabaseOpenHelper.executePragma(db, "PRAGMA wal_checkpoint(PASSIVE)");
+            }
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+    }
+
+    // Returns whether free pages are left after this step
+    private boolean vacuumStep(int pages) {
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            if (!"2".equals(OwlDatabaseOpenHelper.executePragma(db, "PRAGMA auto_vacuum"))) {
+                return false;
+            }
+            long freePages = Long.parseLong(OwlDatabaseOpenHelper.executePragma(db, "PRAGMA freelist_count"));
+            if (freePages == 0) {
+                return false;
+            }
+            OwlDatabaseOpenHelper.executePragma(db, "PRAGMA incremental_vacuum(" + pages + ")");
+            return freePages > pages;
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ironbreakowl;
+
+public final class MaintenancePolicy {
+    private int mAnalyzeThreshold = 1000;
+    private int mCheckpointThreshold = 1000;
+    private int mVacuumThreshold = 1000;
+    private int mVacuumStepPages = 64;
+
+    // Rows written to a table before it is analyzed again
+    public MaintenancePolicy analyzeThreshold(int rows) {
+        mAnalyzeThreshold = checkPositive("analyzeThreshold", rows);
+        return this;
+    }
+
+    // Rows written to any table before a passive WAL checkpoint
+    public MaintenancePolicy checkpointThreshold(int rows) {
+        mCheckpointThreshold = checkPositive("checkpointThreshold", rows);
+        return this;
+    }
+
+    // Rows deleted from any table before free pages are given back; needs auto_vacuum=INCREMENTAL
+    public MaintenancePolicy vacuumThreshold(int rows) {
+        mVacuumThreshold = checkPositive("vacuumThreshold", rows);
+        return this;
+    }
+
+    public MaintenancePolicy vacuumStepPages(int pages) {
+        mVacuumStepPages = checkPositive("vacuumStepPages", pages);
+        return this;
+    }
+
+    public int getAnalyzeThreshold() {
+        return mAnalyzeThreshold;
+    }
+
+    public int getCheckpointThreshold() {
+        return mCheckpointThreshold;
+    }
+
+    public int getVacuumThreshold() {
+        return mVacuumThreshold;
+    }
+
+    public int getVacuumStepPages() {
+        return mVacuumStepPages;
+    }
+
+    private static int checkPositive(String name, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return value;
+    }
+}
@@ -0,0 +1,16 @@
+package ironbreakowl;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Match {
+    String snippetColumn() default "";
+    String snippetStart() default "<b>";
+    String snippetEnd() default "</b>";
+    String snippetEllipsis() default "...";
+    int snippetTokens() default 15;
+}
@@ -1,10 +1,18 @@
 package ironbreakowl;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 class NonStringArgumentBinder {
     private static final Pattern PATTERN_ARGUMENT_PLACEHOLDER_OR_STRING = Pattern.compile("'(?:[^']|\\\\')'|`[^`]`|\\?");
+    private static final Pattern PATTERN_STRING = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern PATTERN_OR_OR_NOT = Pattern.compile("\\b(?:or|not(?!\\s+null\\b))\\b",
+            Pattern.CASE_INSENSITIVE);
 
     public String[] selectionArgs;
     public String selection;
@@ -19,7 +27,7 @@ class NonStringArgumentBinder {
         for (int i = 0; i < argLength; i++) {
             if (!whereTarget[i]) continue;
             Object arg = args[i];
-            if (isNumber(arg) || arg instanceof Boolean) {
+            if (isNumber(arg) || arg instanceof Boolean || isCollection(arg)) {
                 hasNonString = true;
             } else {
                 ++selectionArgCount;
@@ -38,9 +46,8 @@ class NonStringArgumentBinder {
         Matcher m = PATTERN_ARGUMENT_PLACEHOLDER_OR_STRING.matcher(selection);
         StringBuilder sb = new StringBuilder();
         int argIndex = 0;
-        int selectionIndex = 0;
         int lastEnd = 0;
-        selectionArgs = new String[selectionArgCount];
+        ArrayList<String> selectionArgList = new ArrayList<>(selectionArgCount);
         while (m.find()) {
             String s = m.group();
             if (!"?".equals(s)) {
@@ -61,9 +68,12 @@ class NonStringArgumentBinder {
                 stringValue = arg.toString();
             } else if (arg instanceof Boolean) {
                 stringValue = (Boolean) arg ? "1" : "0";
+            } else if (isCollection(arg)) {
+                List<?> list = asList(arg);
+                stringValue = OwlUtils.inList(list, 0, list.size(), selectionArgList);
             } else {
                 stringValue = "?";
-                selectionArgs[selectionIndex++] = arg.toString();
+                selectionArgList.add(arg.toString());
             }
             sb.append(selection, lastEnd, start);
             sb.append(stringValue);
@@ -71,9 +81,103 @@ class NonStringArgumentBinder {
         }
         sb.append(selection, lastEnd, selection.length());
         this.selection = sb.toString();
+        selectionArgs = selectionArgList.toArray(new String[selectionArgList.size()]);
     }
 
-    private static boolean isNumber(Object o) {
+    static boolean isCollection(Object o) {
+        return o instanceof Collection || o instanceof long[] || o instanceof int[];
+    }
+
+    static List<?> asList(Object o) {
+        if (o instanceof List) {
+            return (List<?>) o;
+        } else if (o instanceof Collection) {
+            return new ArrayList<>((Collection<?>) o);
+        } else if (o instanceof long[]) {
+            long[] array = (long[]) o;
+            ArrayList<Long> list = new ArrayList<>(array.length);
+            for (long value : array) {
+                list.add(value);
+            }
+            return list;
+        } else {
+            int[] array = (int[]) o;
+            ArrayList<Integer> list = new ArrayList<>(array.length);
+            for (int value : array) {
+                list.add(value);
+            }
+            return list;
+        }
+    }
+
+    static boolean hasCollection(Object[] args, boolean[] whereTarget) {
+        int argLength = args == null ? 0 : args.length;
+        for (int i = 0; i < argLength; i++) {
+            if (whereTarget[i] && isCollection(args[i])) return true;
+        }
+        return false;
+    }
+
+    // Splits the largest collection so that each chunk binds at most limit variables; returns null when the
+    // arguments fit as they are. Only a plain "and" of conditions can be split: every row then matches exactly one
+    // chunk, since the values are made distinct first.
+    static List<Object[]> splitArguments(String selection, Object[] args, boolean[] whereTarget, int limit) {
+        int argLength = args == null ? 0 : args.length;
+        int largestIndex = -1;
+        int largestSize = 0;
+        int total = 0;
+        for (int i = 0; i < argLength; i++) {
+            if (!whereTarget[i]) continue;
+            if (!isCollection(args[i])) {
+                ++total;
+                continue;
+            }
+            int size = asList(args[i]).size();
+            total += size;
+            if (size > largestSize) {
+                largestIndex = i;
+                largestSize = size;
+            }
+        }
+        if (total <= limit) {
+            return null;
+        }
+        if (largestIndex == -1 || !isSplittable(selection)) {
+            throw new IllegalArgumentException("Too many @Where arguments: " + total);
+        }
+
+        LinkedHashSet<Object> distinct = new LinkedHashSet<>();
+        for (Object value : asList(args[largestIndex])) {
+            distinct.add(OwlUtils.normalizeKey(value));
+        }
+        List<Object> list = new ArrayList<>(distinct);
+        int size = list.size();
+        int chunkSize = limit - (total - largestSize);
+        if (total - largestSize + size <= limit) {
+            Object[] chunk = args.clone();
+            chunk[largestIndex] = list;
+            return Collections.singletonList(chunk);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Too many @Where arguments: " + total);
+        }
+        ArrayList<Object[]> chunks = new ArrayList<>();
+        for (int start = 0; start < size; start += chunkSize) {
+            Object[] chunk = args.clone();
+            chunk[largestIndex] = list.subList(start, Math.min(start + chunkSize, size));
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    // "or" would match a row in several chunks and "not in" needs all of them at once
+    static boolean isSplittable(String selection) {
+        if (selection == null) return false;
+        String withoutStrings = PATTERN_STRING.matcher(selection).replaceAll("''");
+        return !PATTERN_OR_OR_NOT.matcher(withoutStrings).find();
+    }
+
+    static boolean isNumber(Object o) {
         return o instanceof Byte ||
                 o instanceof Short ||
                 o instanceof Integer ||
@@ -7,26 +7,44 @@ import android.database.Cursor;
 import android.database.DatabaseErrorHandler;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
+import android.util.Log;
+import android.util.Pair;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,23 +57,45 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
     private static final int RETURN_TYPE_LONG = 4;
     private static final int RETURN_TYPE_LIST = 5;
     private static final int RETURN_TYPE_SINGLE = 6;
+    private static final int RETURN_TYPE_MAP = 7;
+    private static final int RETURN_TYPE_PAGED_LIST = 8;
+    private static final int RETURN_TYPE_PREFETCH_ITERABLE = 9;
+    private static final int RETURN_TYPE_AGGREGATE = 10;
+    private static final int RETURN_TYPE_GROUPED_MAP = 11;
+
+    public static final int TRANSACTION_DEFERRED = 0;
+    public static final int TRANSACTION_IMMEDIATE = 1;
+    public static final int TRANSACTION_EXCLUSIVE = 2;
+    public static final int TRANSACTION_READ_ONLY = 3;
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
 
     protected static final String PRIMARY_KEY = "primary key";
     protected static final String AUTO_INCREMENT = "autoincrement";
     protected static final String NOT_NULL = "not null";
     protected static final String DEFAULT_NULL = "default null";
 
+    private static final int PURGE_CHUNK_SIZE = 500;
+    private static final int PURGE_MAX_YIELD_MILLIS = 50;
+    private static final long BACKGROUND_MAX_DEFER_NANOS = 1000000000L;
+    private static final long BACKGROUND_POLL_MILLIS = 10;
+    private static final int VERSION_CODE_UPSIDE_DOWN_CAKE = 34;
+
     private static final Pattern PATTERN_CONSTANT_ARGUMENT_PLACEHOLDER_OR_STRING =
             Pattern.compile("'(?:[^']|\\\\')'|`[^`]`|%[dsb]");
+    private static final Pattern PATTERN_QUALIFIED_COLUMN = Pattern.compile("\\w+\\.\\w+");
+    private static final Pattern PATTERN_KEY_EQUALS = Pattern.compile("\\s*\\(?\\s*(\\w+)\\s*==?\\s*\\?\\s*\\)?\\s*");
 
     static abstract class QueryInfo {
         public int returnType;
         public Class modelClass;
+        public boolean background;
 
         public abstract Object query(OwlTable table, Object[] args);
     }
 
-    static abstract class SelectableQueryInfo extends QueryInfo {
+    abstract class SelectableQueryInfo extends QueryInfo {
         public String selection;
         public boolean[] isSelectionArgument;
 
@@ -67,11 +107,110 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                 return new NonStringArgumentBinder();
             }
         }
+
+        @Override
+        public Object query(final OwlTable owl, Object[] args) {
+            final List<Object[]> chunks = NonStringArgumentBinder.splitArguments(selection, args,
+                    isSelectionArgument, OwlUtils.MAX_VARIABLE_NUMBER - reservedVariables(args));
+            if (chunks == null) {
+                return queryChunk(owl, args);
+            } else if (chunks.size() == 1) {
+                return queryChunk(owl, chunks.get(0));
+            }
+            if (!canMergeChunks()) {
+                throw new IllegalArgumentException("Too many elements in a @Where collection for an Iterable, " +
+                        "PagedList, ordered, grouped or aggregate result");
+            }
+            if (!isWrite()) {
+                return mergeChunks(owl, chunks);
+            }
+            return runInTransaction(TRANSACTION_IMMEDIATE, new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return mergeChunks(owl, chunks);
+                }
+            });
+        }
+
+        // The return type that chunk results are merged as
+        protected int chunkResultType() {
+            return returnType;
+        }
+
+        protected abstract Object queryChunk(OwlTable owl, Object[] args);
+
+        protected boolean isWrite() {
+            return false;
+        }
+
+        // Variables bound besides the selection's
+        protected int reservedVariables(Object[] args) {
+            return 0;
+        }
+
+        protected boolean canMergeChunks() {
+            return returnType == RETURN_TYPE_LIST || returnType == RETURN_TYPE_INT ||
+                    returnType == RETURN_TYPE_BOOLEAN || returnType == RETURN_TYPE_SINGLE ||
+                    returnType == RETURN_TYPE_VOID;
+        }
+
+        private Object mergeChunks(OwlTable owl, List<Object[]> chunks) {
+            lock();
+            try {
+                ArrayList list = null;
+                int count = 0;
+                boolean any = false;
+                int resultType = chunkResultType();
+                for (Object[] chunk : chunks) {
+                    Object result = queryChunk(owl, chunk);
+                    switch (resultType) {
+                        case RETURN_TYPE_LIST:
+                            if (list == null) {
+                                list = (ArrayList) result;
+                            } else {
+                                //noinspection unchecked
+                                list.addAll((List) result);
+                            }
+                            break;
+                        case RETURN_TYPE_INT:
+                            count += (Integer) result;
+                            break;
+                        case RETURN_TYPE_BOOLEAN:
+                            if ((Boolean) result) {
+                                if (!isWrite()) {
+                                    return true;
+                                }
+                                any = true;
+                            }
+                            break;
+                        case RETURN_TYPE_SINGLE:
+                            if (((Single) result).hasValue) {
+                                return result;
+                            }
+                            break;
+                    }
+                }
+                switch (resultType) {
+                    case RETURN_TYPE_LIST:
+                        return list;
+                    case RETURN_TYPE_INT:
+                        return count;
+                    case RETURN_TYPE_BOOLEAN:
+                        return any;
+                    case RETURN_TYPE_SINGLE:
+                        return Single.empty();
+                }
+            } finally {
+                mLock.unlock();
+            }
+            return null;
+        }
     }
 
     static class ValueSetter {
         public String[] argumentColumnNames;
         public boolean[] optional;
+        public boolean[] compress;
         public List<Map.Entry<String, Object>> constantValues;
     }
 
@@ -80,17 +219,53 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
     }
 
     class SelectInfo extends SelectableQueryInfo {
+        public String from;
         public String[] projection;
         public String orderBy;
+        public String groupBy;
+        public String having;
+        public int pageSize;
+        public int maxPages;
+        public int prefetchQueueSize;
+        public int parallelMinRows;
+        public long timeoutMillis;
+        public int cancellationTokenIndex = -1;
+        public int keyFilterArgumentIndex = -1;
 
         @Override
-        public Object query(OwlTable owl, Object[] args) {
+        protected boolean canMergeChunks() {
+            // Chunks come back one after the other, so only an unordered result can be put together from them
+            return super.canMergeChunks() && groupBy == null && orderBy == null;
+        }
+
+        @Override
+        protected Object queryChunk(OwlTable owl, Object[] args) {
+            if (keyFilterArgumentIndex >= 0 && !owl.mKeyFilter.mightContain(args[keyFilterArgumentIndex])) {
+                return false;
+            }
             NonStringArgumentBinder argBinder = bind(args);
-            mLock.lock();
+            CancellationToken callerToken = cancellationTokenIndex >= 0 ?
+                    (CancellationToken) args[cancellationTokenIndex] : null;
+            if (returnType == RETURN_TYPE_PAGED_LIST) {
+                return newPagedList(owl, argBinder, callerToken);
+            } else if (returnType == RETURN_TYPE_PREFETCH_ITERABLE) {
+                return newPrefetchIterable(owl, argBinder, callerToken);
+            }
+            Cancellation cancellation = Cancellation.begin(callerToken, timeoutMillis);
+            boolean finishLater = false;
+            if (returnType == RETURN_TYPE_LIST && parallelMinRows > 0) {
+                try {
+                    return queryParallel(owl, argBinder, cancellation);
+                } finally {
+                    cancellation.finish();
+                }
+            }
+            lock();
             try {
                 SQLiteDatabase db = getReadableDatabase();
-                final Cursor cursor = db.query(owl.mTableName, projection, argBinder.selection, argBinder.selectionArgs,
-                        null, null, orderBy);
+                final Cursor cursor = queryCancellable(db, from != null ? from : owl.mTableName, projection,
+                        argBinder.selection, argBinder.selectionArgs, groupBy, having, orderBy, null,
+                        cancellation.token);
                 switch (returnType) {
                     case RETURN_TYPE_BOOLEAN:
                         boolean retVal = cursor.moveToNext();
@@ -101,18 +276,13 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                         cursor.close();
                         return count;
                     case RETURN_TYPE_ITERABLE:
-                        final Object cursorReader = CursorReader.create(cursor, modelClass);
-                        final CursorIterator cursorIterator = new CursorIterator(cursor, cursorReader,
-                                OwlDatabaseOpenHelper.this);
-                        return new Iterable() {
-                            @Override
-                            public Iterator iterator() {
-                                return cursorIterator;
-                            }
-                        };
+                        finishLater = true;
+                        return iterate(cursor, modelClass, cancellation);
                     case RETURN_TYPE_LIST:
                         ArrayList list = PlainDataModel.collect(cursor, modelClass);
                         cursor.close();
+                        cancellation.throwIfCancelled();
+                        PlainDataModel.fillRelations(db, list, modelClass);
                         return list;
                     case RETURN_TYPE_SINGLE:
                         if (isPrimitiveWrapper(modelClass)) {
@@ -127,14 +297,559 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                         } else {
                             Single value = PlainDataModel.readSingle(cursor, modelClass);
                             cursor.close();
+                            if (value.hasValue) {
+                                PlainDataModel.fillRelations(db, Collections.singletonList(value.value), modelClass);
+                            }
                             return value;
                         }
                 }
+            } catch (RuntimeException e) {
+                throw Cancellation.translate(e);
             } finally {
+                if (!finishLater) {
+                    cancellation.finish();
+                }
                 mLock.unlock();
             }
             return null;
         }
+
+        private ArrayList queryParallel(OwlTable owl, NonStringArgumentBinder argBinder, Cancellation cancellation) {
+            ArrayList<Object[]> rawRows;
+            lock();
+            try {
+                Cursor cursor = queryCancellable(getReadableDatabase(), from != null ? from : owl.mTableName,
+                        projection, argBinder.selection, argBinder.selectionArgs, groupBy, having, orderBy, null,
+                        cancellation.token);
+                try {
+                    rawRows = PlainDataModel.collectRaw(cursor, modelClass);
+                } finally {
+                    cursor.close();
+                }
+            } catch (RuntimeException e) {
+                throw Cancellation.translate(e);
+            } finally {
+                mLock.unlock();
+            }
+
+            // Decoding happens outside of the lock
+            ArrayList list = decodeInParallel(rawRows, modelClass, parallelMinRows);
+            cancellation.throwIfCancelled();
+            lock();
+            try {
+                PlainDataModel.fillRelations(getReadableDatabase(), list, modelClass);
+            } finally {
+                mLock.unlock();
+            }
+            return list;
+        }
+
+        // Rows are read a queue's worth at a time under the lock and handed over without it, so the consumer can
+        // write while the producer waits for room
+        private PrefetchIterable newPrefetchIterable(OwlTable owl, final NonStringArgumentBinder argBinder,
+                                                     final CancellationToken callerToken) {
+            if (mLock.isHeldByCurrentThread()) {
+                // The producer could never take the lock while the consumer waits for its rows
+                throw new IllegalStateException("@Prefetch results cannot be read inside a transaction");
+            }
+            final String table = from != null ? from : owl.mTableName;
+            return new PrefetchIterable(new PrefetchIterable.Producer() {
+                @Override
+                public void produce(PrefetchIterable.Sink sink) {
+                    boolean isReader = modelClass.isInterface();
+                    ArrayList<Object> batch = new ArrayList<>(prefetchQueueSize);
+                    Cancellation cancellation = Cancellation.begin(callerToken, timeoutMillis);
+                    Cursor cursor = null;
+                    try {
+                        boolean hasMore = true;
+                        while (hasMore) {
+                            lock();
+                            try {
+                                if (cursor == null) {
+                                    cursor = queryCancellable(getReadableDatabase(), table, projection,
+                                            argBinder.selection, argBinder.selectionArgs, groupBy, having, orderBy,
+                                            null, cancellation.token);
+                                }
+                                while (batch.size() < prefetchQueueSize && (hasMore = cursor.moveToNext())) {
+                                    batch.add(isReader ? CursorReader.snapshot(cursor, modelClass) :
+                                            PlainDataModel.readRow(cursor, modelClass));
+                                }
+                            } finally {
+                                mLock.unlock();
+                            }
+                            for (Object row : batch) {
+                                if (!sink.put(row)) return;
+                            }
+                            batch.clear();
+                            cancellation.throwIfCancelled();
+                        }
+                    } catch (RuntimeException e) {
+                        throw Cancellation.translate(e);
+                    } finally {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                        cancellation.finish();
+                    }
+                }
+            }, prefetchQueueSize);
+        }
+
+        // The timeout applies to the count and to every page load separately
+        private PagedList newPagedList(OwlTable owl, final NonStringArgumentBinder argBinder,
+                                       final CancellationToken callerToken) {
+            final String table = from != null ? from : owl.mTableName;
+            int count;
+            Cancellation cancellation = Cancellation.begin(callerToken, timeoutMillis);
+            lock();
+            try {
+                Cursor cursor = queryCancellable(getReadableDatabase(), table, new String[]{"count(*)"},
+                        argBinder.selection, argBinder.selectionArgs, null, null, null, null, cancellation.token);
+                try {
+                    count = cursor.moveToNext() ? cursor.getInt(0) : 0;
+                } finally {
+                    cursor.close();
+                }
+            } catch (RuntimeException e) {
+                throw Cancellation.translate(e);
+            } finally {
+                cancellation.finish();
+                mLock.unlock();
+            }
+            //noinspection unchecked
+            return new PagedList(new PagedList.PageLoader() {
+                @Override
+                public List load(int offset, int limit) {
+                    Cancellation cancellation = Cancellation.begin(callerToken, timeoutMillis);
+                    lock();
+                    try {
+                        SQLiteDatabase db = getReadableDatabase();
+                        Cursor cursor = queryCancellable(db, table, projection, argBinder.selection,
+                                argBinder.selectionArgs, null, null, orderBy, offset + "," + limit,
+                                cancellation.token);
+                        ArrayList rows;
+                        try {
+                            rows = PlainDataModel.collect(cursor, modelClass);
+                        } finally {
+                            cursor.close();
+                        }
+                        PlainDataModel.fillRelations(db, rows, modelClass);
+                        return rows;
+                    } catch (RuntimeException e) {
+                        throw Cancellation.translate(e);
+                    } finally {
+                        cancellation.finish();
+                        mLock.unlock();
+                    }
+                }
+            }, count, pageSize, maxPages, getBackgroundExecutor());
+        }
+    }
+
+    // Before Jelly Bean a token is only checked before the query and between rows
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    static Cursor queryCancellable(SQLiteDatabase db, String table, String[] columns, String selection,
+                                   String[] selectionArgs, String groupBy, String having, String orderBy,
+                                   String limit, CancellationToken token) {
+        if (token == null) {
+            return db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+        }
+        token.throwIfCancelled();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+        }
+        return db.query(false, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit,
+                token.getSignal());
+    }
+
+    class AggregateInfo extends SelectableQueryInfo {
+        public String[] projection;
+        public String groupBy;
+        public String having;
+        public Class keyClass;
+
+        @Override
+        protected boolean canMergeChunks() {
+            return false;
+        }
+
+        @Override
+        protected Object queryChunk(OwlTable owl, Object[] args) {
+            NonStringArgumentBinder argBinder = bind(args);
+            lock();
+            try {
+                Cursor cursor = getReadableDatabase().query(owl.mTableName, projection, argBinder.selection,
+                        argBinder.selectionArgs, groupBy, having, null);
+                try {
+                    if (returnType == RETURN_TYPE_AGGREGATE) {
+                        // Without group by there is always exactly one row
+                        cursor.moveToNext();
+                        return readAggregate(cursor, 0, modelClass);
+                    }
+                    LinkedHashMap<Object, Object> map = new LinkedHashMap<>();
+                    while (cursor.moveToNext()) {
+                        map.put(readAggregate(cursor, 0, keyClass), readAggregate(cursor, 1, modelClass));
+                    }
+                    return map;
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        // sum(), min(), max() and avg() are NULL over no rows; primitives read that as 0
+        private Object readAggregate(Cursor cursor, int columnIndex, Class clazz) {
+            if (!clazz.isPrimitive() && cursor.isNull(columnIndex)) {
+                return null;
+            }
+            return OwlUtils.readValue(cursor, columnIndex, clazz, null);
+        }
+    }
+
+    static String buildAggregateExpression(int function, String column) {
+        if ("*".equals(column)) {
+            if (function != Aggregate.COUNT) {
+                throw new IllegalArgumentException("Only COUNT can take *");
+            }
+            return "count(*)";
+        }
+        Predicate.checkColumn(column);
+        switch (function) {
+            case Aggregate.SUM:
+                return "sum(" + column + ')';
+            case Aggregate.MIN:
+                return "min(" + column + ')';
+            case Aggregate.MAX:
+                return "max(" + column + ')';
+            case Aggregate.AVG:
+                return "avg(" + column + ')';
+            case Aggregate.COUNT:
+                return "count(" + column + ')';
+            case Aggregate.COUNT_DISTINCT:
+                return "count(distinct " + column + ')';
+            default:
+                throw new IllegalArgumentException("Unknown aggregate function: " + function);
+        }
+    }
+
+    private static String parseHaving(String having) {
+        if (having.length() == 0) {
+            return null;
+        }
+        if (having.indexOf('?') >= 0) {
+            throw new IllegalArgumentException("having cannot take arguments: " + having);
+        }
+        return having;
+    }
+
+    CursorIterable iterate(Cursor cursor, Class readerClass) {
+        return iterate(cursor, readerClass, null);
+    }
+
+    CursorIterable iterate(Cursor cursor, Class readerClass, Cancellation cancellation) {
+        final Object cursorReader = CursorReader.create(cursor, readerClass);
+        final CursorIterator cursorIterator = new CursorIterator(cursor, cursorReader, this, cancellation);
+        return new CursorIterable() {
+            @Override
+            public Iterator iterator() {
+                return cursorIterator;
+            }
+
+            @Override
+            public void close() {
+                cursorIterator.close();
+            }
+        };
+    }
+
+    Cursor rawQuery(SQLiteDatabase db, String sql, Object[] args, String tableName) {
+        return db.rawQueryWithFactory(new TypedArgumentCursorFactory(args), sql, null, tableName);
+    }
+
+    synchronized ExecutorService getBackgroundExecutor() {
+        if (mBackgroundExecutor == null) {
+            mBackgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable r) {
+                    Thread thread = new Thread("OwlBackground") {
+                        @Override
+                        public void run() {
+                            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                            mPriority.set(PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mBackgroundExecutor;
+    }
+
+    <T> ArrayList<T> decodeInParallel(final List<Object[]> rawRows, final Class<T> clazz, int minRows) {
+        final int rowCount = rawRows.size();
+        //noinspection unchecked
+        final T[] rows = (T[]) new Object[rowCount];
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (rowCount < minRows || threads < 2) {
+            PlainDataModel.decodeRaw(rawRows, 0, rowCount, clazz, rows);
+        } else {
+            int chunkSize = Math.max(minRows / 4, (rowCount + threads * 4 - 1) / (threads * 4));
+            ExecutorService executor = getDecodeExecutor();
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int start = chunkSize; start < rowCount; start += chunkSize) {
+                final int chunkStart = start;
+                final int chunkEnd = Math.min(start + chunkSize, rowCount);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        PlainDataModel.decodeRaw(rawRows, chunkStart, chunkEnd, clazz, rows);
+                    }
+                }));
+            }
+            PlainDataModel.decodeRaw(rawRows, 0, Math.min(chunkSize, rowCount), clazz, rows);
+            for (Future<?> future : futures) {
+                awaitFuture(future);
+            }
+        }
+        return new ArrayList<>(Arrays.asList(rows));
+    }
+
+    private static void awaitFuture(Future<?> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getDecodeExecutor() {
+        if (sDecodeExecutor == null) {
+            final int threads = Runtime.getRuntime().availableProcessors();
+            sDecodeExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "OwlDecode-" + (++mCount));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDecodeExecutor;
+    }
+
+    public QueryBuilder select(Class tableClass) {
+        return new QueryBuilder(this, getTableName(tableClass));
+    }
+
+    // Writes the whole table, sorted by keyColumn, for Snapshot.open(). Holds the lock until done, so call it from a
+    // build step or a background thread.
+    public void exportSnapshot(Class tableClass, String keyColumn, File file) throws IOException {
+        String tableName = getTableName(tableClass);
+        Predicate.checkColumn(keyColumn);
+        lock();
+        try {
+            SnapshotWriter.write(getReadableDatabase(), tableName, keyColumn, file);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public Future<Integer> purge(Class tableClass, final Predicate where, final PurgeListener listener) {
+        final OwlTable owl = getOwlTable(tableClass);
+        return getBackgroundExecutor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return deleteInChunks(owl, where, listener);
+            }
+        });
+    }
+
+    // Retention is also enforced once in the background when a table with a rule is first used after opening;
+    // long-lived processes can call this to enforce it again
+    public Future<Integer> enforceRetention(Class tableClass, final PurgeListener listener) {
+        final OwlTable owl = getOwlTable(tableClass);
+        if (!owl.hasRetentionRule()) {
+            throw new IllegalArgumentException("No retention rule on " + tableClass.getCanonicalName());
+        }
+        return getBackgroundExecutor().submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return deleteInChunks(owl, buildRetentionPredicate(owl), listener);
+            }
+        });
+    }
+
+    private void scheduleRetention(final OwlTable owl) {
+        getBackgroundExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deleteInChunks(owl, buildRetentionPredicate(owl), null);
+                } catch (RuntimeException e) {
+                    Log.w(OwlUtils.TAG, "Enforcing retention on " + owl.mTableName + " failed", e);
+                }
+            }
+        });
+    }
+
+    // maxRows keeps the newest rows by rowid, i.e. in insertion order
+    private Predicate buildRetentionPredicate(OwlTable owl) {
+        Predicate where = null;
+        if (owl.mRetentionColumn != null) {
+            where = Predicate.lt(owl.mRetentionColumn, System.currentTimeMillis() - owl.mMaxAgeMillis);
+        }
+        if (owl.mMaxRows > 0) {
+            lock();
+            try {
+                Cursor cursor = getReadableDatabase().rawQuery("select rowid from " + owl.mTableName +
+                        " order by rowid desc limit 1 offset " + owl.mMaxRows, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        Predicate overflow = Predicate.le("rowid", cursor.getLong(0));
+                        where = where == null ? overflow : where.or(overflow);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+        return where;
+    }
+
+    // Deletes by rowid in bounded chunks, each in its own implicit transaction, and lets waiting threads take the
+    // lock in between; interrupting the thread (Future.cancel(true)) stops after the current chunk
+    private int deleteInChunks(OwlTable owl, Predicate where, PurgeListener listener) {
+        String tableName = owl.mTableName;
+        int total = 0;
+        if (where == null) {
+            if (listener != null) {
+                listener.onProgress(tableName, 0, true);
+            }
+            return 0;
+        }
+        String sql = "delete from " + tableName + " where rowid in (select rowid from " + tableName + " where " +
+                where.sql + " limit " + PURGE_CHUNK_SIZE + ')';
+        Object[] args = where.args.toArray();
+        while (!Thread.currentThread().isInterrupted()) {
+            int deleted;
+            lock();
+            try {
+                checkWritable();
+                deleted = executeDelete(getWritableDatabase(), sql, args);
+                onRowsWritten(owl, deleted, true);
+            } finally {
+                mLock.unlock();
+            }
+            total += deleted;
+            boolean finished = deleted < PURGE_CHUNK_SIZE;
+            if (listener != null) {
+                listener.onProgress(tableName, total, finished);
+            }
+            if (finished || !yieldLock()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int executeDelete(SQLiteDatabase db, String sql, Object[] args) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            db.execSQL(sql, args);
+            SQLiteStatement changes = db.compileStatement("select changes()");
+            try {
+                return (int) changes.simpleQueryForLong();
+            } finally {
+                changes.close();
+            }
+        }
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            for (int i = 0; i < args.length; i++) {
+                OwlUtils.bindValue(statement, i + 1, args[i]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    // The lock is not fair, so give threads that queued up during a chunk a moment to get it first
+    private boolean yieldLock() {
+        try {
+            for (int i = 0; i < PURGE_MAX_YIELD_MILLIS && mLock.hasQueuedThreads(); i++) {
+                Thread.sleep(1);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Caches and filters are looked up by table name, since they may belong to another interface on the table
+    private void onRowsWritten(OwlTable owl, int rows, boolean deleted) {
+        RowCache rowCache = mRowCaches.get(owl.mTableName);
+        if (rowCache != null) {
+            rowCache.clear();
+        }
+        mMaintenance.recordWrites(owl.mTableName, rows, deleted);
+        KeyFilter keyFilter = mKeyFilters.get(owl.mTableName);
+        if (deleted && keyFilter != null) {
+            keyFilter.onDeleted(rows);
+        }
+    }
+
+    // Call after writing to a table with plain SQL, which the helper can't see
+    public void onTableChanged(Class tableClass) {
+        String tableName = getTableName(tableClass);
+        // Under the lock, so that a @MultiGet in progress can't cache rows it read before the change
+        lock();
+        try {
+            RowCache rowCache = mRowCaches.get(tableName);
+            if (rowCache != null) {
+                rowCache.clear();
+            }
+        } finally {
+            mLock.unlock();
+        }
+        KeyFilter keyFilter = mKeyFilters.get(tableName);
+        if (keyFilter != null) {
+            keyFilter.invalidate();
+        }
+    }
+
+    // Pass null to turn the background ANALYZE, checkpoint and vacuum steps off
+    public void setMaintenancePolicy(MaintenancePolicy policy) {
+        mMaintenance.setPolicy(policy);
+    }
+
+    public MaintenancePolicy getMaintenancePolicy() {
+        return mMaintenance.getPolicy();
     }
 
     static boolean isPrimitiveWrapper(Class clazz) {
@@ -150,12 +865,19 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
 
     class DeleteInfo extends SelectableQueryInfo {
         @Override
-        public Object query(OwlTable owl, Object[] args) {
+        protected boolean isWrite() {
+            return true;
+        }
+
+        @Override
+        protected Object queryChunk(OwlTable owl, Object[] args) {
             NonStringArgumentBinder argBinder = bind(args);
-            mLock.lock();
+            lock();
             try {
+                checkWritable();
                 SQLiteDatabase db = getWritableDatabase();
                 int affected = db.delete(owl.mTableName, argBinder.selection, argBinder.selectionArgs);
+                onRowsWritten(owl, affected, true);
                 switch (returnType) {
                     case RETURN_TYPE_VOID:
                         return null;
@@ -182,11 +904,20 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
 
         @Override
         public Object query(OwlTable owl, Object[] args) {
-            mLock.lock();
+            lock();
             try {
+                checkWritable();
                 SQLiteDatabase db = getWritableDatabase();
                 ContentValues values = makeValues(valueSetter, args);
                 long retVal = db.insertWithOnConflict(owl.mTableName, null, values, conflictAlgorithm);
+                onRowsWritten(owl, retVal != -1 ? 1 : 0, false);
+                if (retVal != -1) {
+                    markValuesWritten(args);
+                    KeyFilter keyFilter = mKeyFilters.get(owl.mTableName);
+                    if (keyFilter != null) {
+                        keyFilter.onInserted(db, values, retVal);
+                    }
+                }
                 switch (returnType) {
                     case RETURN_TYPE_VOID:
                         return null;
@@ -202,6 +933,165 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
         }
     }
 
+    class UpsertInfo extends QueryInfo implements ValueSettableQueryInfo {
+        public ValueSetter valueSetter = new ValueSetter();
+        public String[] conflictColumns;
+        public String[] updateColumns;
+
+        @Override
+        public ValueSetter valueSetter() {
+            return valueSetter;
+        }
+
+        @Override
+        public Object query(final OwlTable owl, Object[] args) {
+            final ContentValues values = makeValues(valueSetter, args);
+            lock();
+            try {
+                checkWritable();
+                SQLiteDatabase db = getWritableDatabase();
+                boolean changed;
+                if (isNativeUpsertSupported(db)) {
+                    changed = nativeUpsert(db, owl.mTableName, values);
+                } else {
+                    changed = runInTransaction(TRANSACTION_IMMEDIATE, new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return emulatedUpsert(getWritableDatabase(), owl.mTableName, values);
+                        }
+                    });
+                }
+                onRowsWritten(owl, changed ? 1 : 0, false);
+                KeyFilter keyFilter = mKeyFilters.get(owl.mTableName);
+                if (changed && keyFilter != null) {
+                    // The row id is unknown when an update won, so a missing key column means a rebuild
+                    keyFilter.onInserted(db, values, -1);
+                }
+                return returnType == RETURN_TYPE_BOOLEAN ? changed : null;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        private List<String> resolveUpdateColumns(List<String> columns) {
+            ArrayList<String> updates = new ArrayList<>();
+            if (updateColumns.length != 0) {
+                for (String column : updateColumns) {
+                    if (columns.contains(column)) {
+                        updates.add(column);
+                    }
+                }
+            } else {
+                List<String> conflicts = Arrays.asList(conflictColumns);
+                for (String column : columns) {
+                    if (!conflicts.contains(column)) {
+                        updates.add(column);
+                    }
+                }
+            }
+            return updates;
+        }
+
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        private boolean nativeUpsert(SQLiteDatabase db, String tableName, ContentValues values) {
+            ArrayList<String> columns = new ArrayList<>();
+            ArrayList<Object> bindArgs = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                columns.add(entry.getKey());
+                bindArgs.add(entry.getValue());
+            }
+            String sql = buildUpsertSql(tableName, columns, conflictColumns, resolveUpdateColumns(columns));
+            SQLiteStatement statement = db.compileStatement(sql);
+            try {
+                for (int i = 0; i < bindArgs.size(); i++) {
+                    OwlUtils.bindValue(statement, i + 1, bindArgs.get(i));
+                }
+                return statement.executeUpdateDelete() != 0;
+            } finally {
+                statement.close();
+            }
+        }
+
+        private boolean emulatedUpsert(SQLiteDatabase db, String tableName, ContentValues values) {
+            ArrayList<String> columns = new ArrayList<>();
+            for (Map.Entry<String, Object> entry : values.valueSet()) {
+                columns.add(entry.getKey());
+            }
+            List<String> updates = resolveUpdateColumns(columns);
+            if (!updates.isEmpty()) {
+                StringBuilder selection = new StringBuilder();
+                Object[] keys = new Object[conflictColumns.length];
+                boolean[] isSelectionArgument = new boolean[conflictColumns.length];
+                for (int i = 0; i < conflictColumns.length; i++) {
+                    if (i > 0) {
+                        selection.append(" and ");
+                    }
+                    selection.append(conflictColumns[i]).append("=?");
+                    keys[i] = values.get(conflictColumns[i]);
+                    isSelectionArgument[i] = true;
+                }
+                ContentValues updateValues = new ContentValues();
+                for (String column : updates) {
+                    OwlUtils.putValue(updateValues, column, values.get(column));
+                }
+                NonStringArgumentBinder argBinder = new NonStringArgumentBinder(selection.toString(), keys,
+                        isSelectionArgument);
+                if (db.update(tableName, updateValues, argBinder.selection, argBinder.selectionArgs) != 0) {
+                    return true;
+                }
+            }
+            return db.insertWithOnConflict(tableName, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1;
+        }
+    }
+
+    static String buildUpsertSql(String tableName, List<String> columns, String[] conflictColumns,
+                                 List<String> updateColumns) {
+        StringBuilder sb = new StringBuilder("insert into ").append(tableName).append('(');
+        sb.append(TextUtils.join(",", columns)).append(") values (");
+        for (int i = 0; i < columns.size(); i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        sb.append(") on conflict(").append(TextUtils.join(",", conflictColumns)).append(')');
+        if (updateColumns.isEmpty()) {
+            sb.append(" do nothing");
+        } else {
+            sb.append(" do update set ");
+            for (int i = 0; i < updateColumns.size(); i++) {
+                String column = updateColumns.get(i);
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(column).append("=excluded.").append(column);
+            }
+        }
+        return sb.toString();
+    }
+
+    private boolean isNativeUpsertSupported(SQLiteDatabase db) {
+        return isSqliteVersionAtLeast(db, 3, 24);
+    }
+
+    boolean isSqliteVersionAtLeast(SQLiteDatabase db, int major, int minor) {
+        String version = mSqliteVersion;
+        if (version == null) {
+            SQLiteStatement statement = db.compileStatement("select sqlite_version()");
+            try {
+                version = statement.simpleQueryForString();
+            } finally {
+                statement.close();
+            }
+            mSqliteVersion = version;
+        }
+        return isSqliteVersionAtLeast(version, major, minor);
+    }
+
+    static boolean isSqliteVersionAtLeast(String version, int major, int minor) {
+        String[] parts = version.split("\\.");
+        int actualMajor = Integer.parseInt(parts[0]);
+        int actualMinor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+        return actualMajor > major || (actualMajor == major && actualMinor >= minor);
+    }
+
     class UpdateInfo extends SelectableQueryInfo implements ValueSettableQueryInfo {
         public ValueSetter valueSetter = new ValueSetter();
 
@@ -210,59 +1100,266 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
             return valueSetter;
         }
 
+        @Override
+        protected boolean isWrite() {
+            return true;
+        }
+
+        // Chunks return the number of changed rows, whatever the method returns
         @Override
         public Object query(OwlTable owl, Object[] args) {
+            int changed = (Integer) super.query(owl, args);
+            if (changed != 0) {
+                markValuesWritten(args);
+            }
+            switch (returnType) {
+                case RETURN_TYPE_INT:
+                    return changed;
+                case RETURN_TYPE_BOOLEAN:
+                    return changed != 0;
+            }
+            return null;
+        }
+
+        @Override
+        protected int chunkResultType() {
+            return RETURN_TYPE_INT;
+        }
+
+        @Override
+        protected int reservedVariables(Object[] args) {
+            if (!NonStringArgumentBinder.hasCollection(args, isSelectionArgument)) {
+                return 0;
+            }
+            return makeValues(valueSetter, args, true).size();
+        }
+
+        @Override
+        protected Object queryChunk(OwlTable owl, Object[] args) {
+            ContentValues values = makeValues(valueSetter, args, true);
+            if (values.size() == 0) {
+                // Nothing changed in the tracked models
+                return 0;
+            }
             NonStringArgumentBinder argBinder = bind(args);
-            mLock.lock();
+            lock();
             try {
+                checkWritable();
                 SQLiteDatabase db = getWritableDatabase();
-                ContentValues values = makeValues(valueSetter, args);
                 int retVal = db.update(owl.mTableName, values, argBinder.selection, argBinder.selectionArgs);
-                switch (returnType) {
-                    case RETURN_TYPE_VOID:
-                        return null;
-                    case RETURN_TYPE_INT:
-                        return retVal;
-                    case RETURN_TYPE_BOOLEAN:
-                        return retVal != 0;
+                onRowsWritten(owl, retVal, false);
+                KeyFilter keyFilter = mKeyFilters.get(owl.mTableName);
+                if (keyFilter != null) {
+                    keyFilter.onUpdated(values, retVal);
                 }
+                return retVal;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    static class TransactionState {
+        public int mode;
+        public boolean readOnly;
+        public boolean outerIsLegacy;
+        public int depth;
+        // Tracked models written so far, with what they looked like at the time; they become clean on commit
+        public final ArrayList<Pair<TrackedModel, Object[]>> written = new ArrayList<>();
+    }
+
+    class MultiGetInfo extends QueryInfo {
+        public String keyColumn;
+        public Field keyField;
+
+        @Override
+        public Object query(OwlTable owl, Object[] args) {
+            List<?> keys = NonStringArgumentBinder.asList(args[0]);
+            LinkedHashMap<Object, Object> result = new LinkedHashMap<>();
+            lock();
+            try {
+                RowCache cache = owl.mRowCache;
+                HashMap<Object, Object> missingKeys = new HashMap<>();
+                ArrayList<Object> missingKeyList = new ArrayList<>();
+                for (Object key : keys) {
+                    Object normalizedKey = OwlUtils.normalizeKey(key);
+                    Object row = cache == null ? null : cache.get(normalizedKey);
+                    // Another table interface on the same table may have cached a different model class
+                    if (row != null && modelClass.isInstance(row)) {
+                        result.put(key, row);
+                    } else if (!missingKeys.containsKey(normalizedKey)) {
+                        missingKeys.put(normalizedKey, key);
+                        missingKeyList.add(normalizedKey);
+                    }
+                }
+                if (missingKeyList.isEmpty()) {
+                    return result;
+                }
+
+                SQLiteDatabase db = getReadableDatabase();
+                // Rows read inside a transaction may be rolled back, so don't cache them
+                boolean cacheable = cache != null && !db.inTransaction();
+                int missingCount = missingKeyList.size();
+                ArrayList<String> selectionArgs = new ArrayList<>();
+                for (int start = 0; start < missingCount; start += OwlUtils.MAX_VARIABLE_NUMBER) {
+                    int end = Math.min(start + OwlUtils.MAX_VARIABLE_NUMBER, missingCount);
+                    selectionArgs.clear();
+                    String selection = keyColumn + " in " + OwlUtils.inList(missingKeyList, start, end, selectionArgs);
+                    Cursor cursor = db.query(owl.mTableName, null, selection,
+                            selectionArgs.toArray(new String[selectionArgs.size()]), null, null, null);
+                    ArrayList rows;
+                    try {
+                        rows = PlainDataModel.collect(cursor, modelClass);
+                    } finally {
+                        cursor.close();
+                    }
+                    PlainDataModel.fillRelations(db, rows, modelClass);
+                    for (Object row : rows) {
+                        Object normalizedKey = OwlUtils.normalizeKey(keyField.get(row));
+                        result.put(missingKeys.get(normalizedKey), row);
+                        if (cacheable) {
+                            cache.put(normalizedKey, row);
+                        }
+                    }
+                }
+                return result;
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
             } finally {
                 mLock.unlock();
             }
-            return null;
         }
     }
 
     static class OwlTable {
         private final String mTableName;
         private final HashMap<Method, QueryInfo> mQueryInfos = new HashMap<>();
+        private final RowCache mRowCache;
+        String mRetentionColumn;
+        long mMaxAgeMillis;
+        long mMaxRows;
+        KeyFilter mKeyFilter;
 
         public Object tableInterface;
 
-        public OwlTable(String tableName) {
+        public OwlTable(String tableName, RowCache rowCache) {
             this.mTableName = tableName;
+            this.mRowCache = rowCache;
+        }
+
+        boolean hasRetentionRule() {
+            return mRetentionColumn != null || mMaxRows > 0;
         }
     }
 
-    private final HashMap<Class, OwlTable> mTables = new HashMap<>();
+    private final ConcurrentHashMap<Class, OwlTable> mTables = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, RowCache> mRowCaches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, KeyFilter> mKeyFilters = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Class, RuntimeException> mWarmUpErrors = new ConcurrentHashMap<>();
+    private volatile String mSqliteVersion;
+    private ExecutorService mBackgroundExecutor;
+    private static ExecutorService sDecodeExecutor;
     final ReentrantLock mLock = new ReentrantLock();
-    private final ThreadLocal<Set<CursorIterator>> mCursorIterators = new ThreadLocal<>();
-    private WeakReference<SQLiteDatabase> mLockingDisabledDatabase;
+    private final ThreadLocal<TransactionState> mTransactionState = new ThreadLocal<>();
+    private final ThreadLocal<Integer> mPriority = new ThreadLocal<>();
+    private final Object mPriorityMonitor = new Object();
+    private volatile int mInteractiveWaiters;
+    private final Object mCursorHoldMonitor = new Object();
+    private Thread mCursorHoldOwner;
+    private int mCursorHolds;
+    private volatile WeakReference<SQLiteDatabase> mLockingDisabledDatabase;
+    private volatile CountDownLatch mOpenLatch;
+    private Thread mOpenThread;
+    private StorageProfile mStorageProfile;
+    private volatile WeakReference<SQLiteDatabase> mConfiguredDatabase;
+    private final Maintenance mMaintenance = new Maintenance(this);
 
     public OwlDatabaseOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
         super(context, name, factory, version); // Don't call this(...)
-        init();
+        init(false, null);
+    }
+
+    public OwlDatabaseOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version,
+                                 boolean openInBackground) {
+        super(context, name, factory, version); // Don't call this(...)
+        init(openInBackground, null);
+    }
+
+    public OwlDatabaseOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version,
+                                 boolean openInBackground, StorageProfile storageProfile) {
+        super(context, name, factory, version); // Don't call this(...)
+        init(openInBackground, storageProfile);
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     public OwlDatabaseOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version,
                                  DatabaseErrorHandler errorHandler) {
         super(context, name, factory, version, errorHandler);
-        init();
+        init(false, null);
     }
 
-    private void init() {
-        getWritableDatabase(); // Make the locking disabled
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public OwlDatabaseOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version,
+                                 DatabaseErrorHandler errorHandler, boolean openInBackground) {
+        super(context, name, factory, version, errorHandler);
+        init(openInBackground, null);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public OwlDatabaseOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version,
+                                 DatabaseErrorHandler errorHandler, boolean openInBackground,
+                                 StorageProfile storageProfile) {
+        super(context, name, factory, version, errorHandler);
+        init(openInBackground, storageProfile);
+    }
+
+    private void init(boolean openInBackground, StorageProfile storageProfile) {
+        if (storageProfile == null) {
+            //noinspection unchecked
+            storageProfile = StorageProfile.from((Pragmas) getClass().getAnnotation(Pragmas.class));
+        }
+        mStorageProfile = storageProfile == null || storageProfile.isEmpty() ? null : storageProfile;
+        if (!openInBackground) {
+            getWritableDatabase(); // Make the locking disabled
+            return;
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        mOpenLatch = latch;
+        mOpenThread = new Thread("OwlOpen") {
+            @Override
+            public void run() {
+                try {
+                    getWritableDatabase();
+                } catch (RuntimeException ignored) {
+                    // The first caller retries the open on its own thread and gets the error there
+                } finally {
+                    mOpenLatch = null;
+                    latch.countDown();
+                }
+            }
+        };
+        mOpenThread.start();
+    }
+
+    private void awaitOpen() {
+        CountDownLatch latch = mOpenLatch;
+        if (latch == null || Thread.currentThread() == mOpenThread) return;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isOpenPending() {
+        return mOpenLatch != null;
     }
 
     public <T> T getTable(Class<T> clazz) {
@@ -280,7 +1377,15 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                                     if (queryInfo == null) {
                                         throw new UnsupportedOperationException();
                                     }
-                                    return queryInfo.query(owl, args);
+                                    if (!queryInfo.background) {
+                                        return queryInfo.query(owl, args);
+                                    }
+                                    int previousPriority = setPriority(PRIORITY_BACKGROUND);
+                                    try {
+                                        return queryInfo.query(owl, args);
+                                    } finally {
+                                        setPriority(previousPriority);
+                                    }
                                 }
                             });
                     owl.tableInterface = tableInterface;
@@ -295,14 +1400,118 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
 
     @NonNull
     private OwlTable getOwlTable(Class clazz) {
-        synchronized (mTables) {
-            OwlTable owl = mTables.get(clazz);
-            if (owl == null) {
-                owl = parseClass(clazz);
-                mTables.put(clazz, owl);
+        if (!mWarmUpErrors.isEmpty()) {
+            RuntimeException error = mWarmUpErrors.remove(clazz);
+            if (error != null) {
+                throw error;
+            }
+        }
+        OwlTable owl = mTables.get(clazz);
+        if (owl == null) {
+            owl = parseClass(clazz);
+            OwlTable existing = mTables.putIfAbsent(clazz, owl);
+            if (existing != null) {
+                owl = existing;
+            } else if (owl.hasRetentionRule()) {
+                scheduleRetention(owl);
             }
-            return owl;
         }
+        return owl;
+    }
+
+    private KeyFilter getKeyFilter(String tableName, BloomFilter bloomFilter) {
+        KeyFilter keyFilter = mKeyFilters.get(tableName);
+        if (keyFilter != null) {
+            return keyFilter;
+        }
+        if (bloomFilter.expectedRows() <= 0) {
+            throw new IllegalArgumentException("expectedRows must be positive");
+        }
+        if (!(bloomFilter.falsePositiveRate() > 0 && bloomFilter.falsePositiveRate() < 1)) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        }
+        keyFilter = new KeyFilter(this, tableName, Predicate.checkColumn(bloomFilter.value()),
+                bloomFilter.expectedRows(), bloomFilter.falsePositiveRate());
+        KeyFilter existing = mKeyFilters.putIfAbsent(tableName, keyFilter);
+        if (existing != null) {
+            return existing;
+        }
+        keyFilter.schedule();
+        return keyFilter;
+    }
+
+    // Only a lone "column = ?" can be answered by the filter
+    static int findKeyArgument(String selection, boolean[] isSelectionArgument, String column) {
+        if (selection == null) return -1;
+        Matcher m = PATTERN_KEY_EQUALS.matcher(selection);
+        if (!m.matches() || !m.group(1).equalsIgnoreCase(column)) return -1;
+        int index = -1;
+        for (int i = 0; i < isSelectionArgument.length; i++) {
+            if (isSelectionArgument[i]) {
+                if (index >= 0) return -1;
+                index = i;
+            }
+        }
+        return index;
+    }
+
+    public void warmUp(final Class... classes) {
+        Thread thread = new Thread("OwlWarmUp") {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                for (Class clazz : classes) {
+                    try {
+                        warmUpClass(clazz);
+                    } catch (RuntimeException e) {
+                        // Kept for the first real use of the class instead of taking the process down
+                        Log.w(OwlUtils.TAG, "Warming up " + clazz.getCanonicalName() + " failed", e);
+                        mWarmUpErrors.put(clazz, e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void warmUpClass(Class clazz) {
+        if (clazz.isAnnotationPresent(Table.class)) {
+            OwlTable owl = getOwlTable(clazz);
+            for (QueryInfo info : owl.mQueryInfos.values()) {
+                if (info.modelClass != null) {
+                    warmUpClass(info.modelClass);
+                }
+            }
+            for (Method method : clazz.getMethods()) {
+                Class[] parameterTypes = method.getParameterTypes();
+                Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    for (Annotation annotation : parameterAnnotations[i]) {
+                        if (annotation instanceof Value && isPlainDataModelClass(parameterTypes[i])) {
+                            PlainDataModel.getModel(parameterTypes[i]);
+                        }
+                    }
+                }
+            }
+        } else if (clazz.isInterface()) {
+            CursorReader.getReader(clazz);
+        } else if (isPlainDataModelClass(clazz)) {
+            PlainDataModel.getModel(clazz);
+        }
+    }
+
+    static boolean isPlainDataModelClass(Class clazz) {
+        return !clazz.isPrimitive() &&
+                !clazz.isInterface() &&
+                !isPrimitiveWrapper(clazz) &&
+                clazz != String.class &&
+                clazz != byte[].class &&
+                clazz != Object.class &&
+                !CharSequence.class.isAssignableFrom(clazz) &&
+                !Parcelable.class.isAssignableFrom(clazz) &&
+                !Single.class.isAssignableFrom(clazz) &&
+                (clazz.getModifiers() & Modifier.ABSTRACT) == 0;
     }
 
     private OwlTable parseClass(Class clazz) {
@@ -316,7 +1525,34 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
         }
         String tableName = table.value();
 
-        OwlTable owl = new OwlTable(tableName);
+        RowCache rowCache = null;
+        if (table.cacheSize() > 0) {
+            rowCache = mRowCaches.get(tableName);
+            if (rowCache == null) {
+                rowCache = new RowCache(table.cacheSize());
+                RowCache existing = mRowCaches.putIfAbsent(tableName, rowCache);
+                if (existing != null) {
+                    rowCache = existing;
+                }
+            }
+        }
+        OwlTable owl = new OwlTable(tableName, rowCache);
+        if (!TextUtils.isEmpty(table.retentionColumn()) || table.maxAgeMillis() != 0) {
+            if (TextUtils.isEmpty(table.retentionColumn()) || table.maxAgeMillis() <= 0) {
+                throw new IllegalArgumentException("retentionColumn and a positive maxAgeMillis go together: " +
+                        clazz.getCanonicalName());
+            }
+            owl.mRetentionColumn = Predicate.checkColumn(table.retentionColumn());
+            owl.mMaxAgeMillis = table.maxAgeMillis();
+        }
+        if (table.maxRows() < 0) {
+            throw new IllegalArgumentException("maxRows must not be negative: " + clazz.getCanonicalName());
+        }
+        owl.mMaxRows = table.maxRows();
+        BloomFilter bloomFilter = (BloomFilter) clazz.getAnnotation(BloomFilter.class);
+        if (bloomFilter != null) {
+            owl.mKeyFilter = getKeyFilter(tableName, bloomFilter);
+        }
         for (Method method : clazz.getMethods()) {
             Query query = method.getAnnotation(Query.class);
             boolean returnTypeValid = true;
@@ -325,26 +1561,65 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                 info.selection = buildPredicate(query.where(), method.getAnnotation(ConstantWhere.class));
                 info.projection = query.select();
                 info.orderBy = query.orderBy();
+                info.timeoutMillis = query.timeoutMillis();
+                info.groupBy = query.groupBy().length() != 0 ? query.groupBy() : null;
+                info.having = parseHaving(query.having());
+                if (info.having != null && info.groupBy == null) {
+                    throw new IllegalArgumentException("having needs groupBy");
+                }
                 if (info.projection.length == 0) {
                     info.projection = null;
                 }
                 if (info.orderBy.length() == 0) {
                     info.orderBy = null;
                 }
+                // Counted before @Match appends its snippet and rank columns, which come after the selected ones
+                int selectedColumns = query.select().length;
+                Join join = method.getAnnotation(Join.class);
+                if (join != null) {
+                    info.from = buildJoinClause(tableName, join);
+                    if (info.projection != null) {
+                        info.projection = labelQualifiedColumns(info.projection);
+                    }
+                }
+                Match match = method.getAnnotation(Match.class);
+                if (match != null) {
+                    if (join != null) {
+                        throw new IllegalArgumentException("@Match cannot be combined with @Join");
+                    }
+                    applyMatch(info, tableName, (Fts) clazz.getAnnotation(Fts.class), match);
+                }
                 parseParameters(method, info);
 
                 Type returnType = method.getGenericReturnType();
                 if (returnType instanceof ParameterizedType) {
                     ParameterizedType pt = (ParameterizedType) returnType;
                     Type rawType = pt.getRawType();
-                    if (rawType == Iterable.class) {
-                        info.returnType = RETURN_TYPE_ITERABLE;
+                    if (rawType == Iterable.class || rawType == CursorIterable.class) {
+                        Prefetch prefetch = method.getAnnotation(Prefetch.class);
+                        if (prefetch != null) {
+                            info.returnType = RETURN_TYPE_PREFETCH_ITERABLE;
+                            info.prefetchQueueSize = prefetch.queueSize();
+                        } else {
+                            info.returnType = RETURN_TYPE_ITERABLE;
+                        }
                         info.modelClass = (Class) pt.getActualTypeArguments()[0];
                     } else if (rawType == List.class || rawType == ArrayList.class) {
+                        Parallel parallel = method.getAnnotation(Parallel.class);
                         info.returnType = RETURN_TYPE_LIST;
                         info.modelClass = (Class) pt.getActualTypeArguments()[0];
+                        info.parallelMinRows = parallel != null ? Math.max(1, parallel.minRows()) : 0;
+                    } else if (rawType == PagedList.class) {
+                        if (info.groupBy != null) {
+                            throw new IllegalArgumentException("groupBy is not supported for PagedList");
+                        }
+                        Paged paged = method.getAnnotation(Paged.class);
+                        info.returnType = RETURN_TYPE_PAGED_LIST;
+                        info.modelClass = (Class) pt.getActualTypeArguments()[0];
+                        info.pageSize = paged != null ? paged.pageSize() : 50;
+                        info.maxPages = paged != null ? paged.maxPages() : 5;
                     } else if (rawType == Single.class) {
-                        if (info.projection.length != 1) {
+                        if (selectedColumns != 1) {
                             throw new IllegalArgumentException(
                                     "select attribute should contain only 1 column when the return type is Single");
                         }
@@ -355,6 +1630,10 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                     }
                 } else if (returnType == Boolean.TYPE || returnType == Boolean.class) {
                     info.returnType = RETURN_TYPE_BOOLEAN;
+                    if (owl.mKeyFilter != null && info.from == null && info.groupBy == null) {
+                        info.keyFilterArgumentIndex = findKeyArgument(info.selection, info.isSelectionArgument,
+                                owl.mKeyFilter.column);
+                    }
                 } else if (returnType == Integer.TYPE || returnType == Integer.class) {
                     info.returnType = RETURN_TYPE_INT;
                 } else {
@@ -368,6 +1647,66 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                 continue;
             }
 
+            Aggregate aggregate = method.getAnnotation(Aggregate.class);
+            if (aggregate != null) {
+                AggregateInfo info = new AggregateInfo();
+                info.selection = buildPredicate(aggregate.where(), method.getAnnotation(ConstantWhere.class));
+                info.having = parseHaving(aggregate.having());
+                String expression = buildAggregateExpression(aggregate.function(), aggregate.column());
+                parseParameters(method, info);
+
+                Type returnType = method.getGenericReturnType();
+                if (aggregate.groupBy().length() != 0) {
+                    if (!(returnType instanceof ParameterizedType) ||
+                            ((ParameterizedType) returnType).getRawType() != Map.class) {
+                        throw new IllegalArgumentException("Map<K, V> is supported for @Aggregate with groupBy");
+                    }
+                    Type[] typeArguments = ((ParameterizedType) returnType).getActualTypeArguments();
+                    info.groupBy = Predicate.checkColumn(aggregate.groupBy());
+                    info.projection = new String[]{info.groupBy, expression};
+                    info.keyClass = (Class) typeArguments[0];
+                    info.modelClass = (Class) typeArguments[1];
+                    info.returnType = RETURN_TYPE_GROUPED_MAP;
+                } else {
+                    Class returnClass = method.getReturnType();
+                    if (info.having != null) {
+                        throw new IllegalArgumentException("having needs groupBy");
+                    }
+                    if (returnClass == Void.TYPE || (!returnClass.isPrimitive() && !isPrimitiveWrapper(returnClass) &&
+                            returnClass != String.class)) {
+                        throw new IllegalArgumentException("A primitive, its wrapper or String is supported for " +
+                                "@Aggregate without groupBy");
+                    }
+                    info.projection = new String[]{expression};
+                    info.modelClass = returnClass;
+                    info.returnType = RETURN_TYPE_AGGREGATE;
+                }
+
+                owl.mQueryInfos.put(method, info);
+                continue;
+            }
+
+            MultiGet multiGet = method.getAnnotation(MultiGet.class);
+            if (multiGet != null) {
+                MultiGetInfo info = new MultiGetInfo();
+                info.keyColumn = multiGet.value();
+                info.returnType = RETURN_TYPE_MAP;
+
+                Type returnType = method.getGenericReturnType();
+                if (!(returnType instanceof ParameterizedType) ||
+                        ((ParameterizedType) returnType).getRawType() != Map.class) {
+                    throw new IllegalArgumentException("Map<K, T> is supported for @MultiGet");
+                }
+                if (method.getParameterTypes().length != 1) {
+                    throw new IllegalArgumentException("@MultiGet takes exactly one Collection, long[] or int[]");
+                }
+                info.modelClass = (Class) ((ParameterizedType) returnType).getActualTypeArguments()[1];
+                info.keyField = PlainDataModel.getColumnField(info.modelClass, info.keyColumn);
+
+                owl.mQueryInfos.put(method, info);
+                continue;
+            }
+
             Delete delete = method.getAnnotation(Delete.class);
             if (delete != null) {
                 DeleteInfo info = new DeleteInfo();
@@ -423,6 +1762,33 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                 continue;
             }
 
+            Upsert upsert = method.getAnnotation(Upsert.class);
+            if (upsert != null) {
+                UpsertInfo info = new UpsertInfo();
+                info.conflictColumns = upsert.conflict();
+                info.updateColumns = upsert.update();
+                if (info.conflictColumns.length == 0) {
+                    throw new IllegalArgumentException("@Upsert needs at least one conflict column");
+                }
+                info.valueSetter.constantValues = parseConstantValues(method);
+                parseParameters(method, info);
+
+                Class returnType = method.getReturnType();
+                if (returnType == Void.TYPE || returnType == Void.class) {
+                    info.returnType = RETURN_TYPE_VOID;
+                } else if (returnType == Boolean.TYPE || returnType == Boolean.class) {
+                    info.returnType = RETURN_TYPE_BOOLEAN;
+                } else {
+                    returnTypeValid = false;
+                }
+                if (!returnTypeValid) {
+                    throw new IllegalArgumentException("void or boolean is supported for @Upsert");
+                }
+
+                owl.mQueryInfos.put(method, info);
+                continue;
+            }
+
             Update update = method.getAnnotation(Update.class);
             if (update != null) {
                 UpdateInfo info = new UpdateInfo();
@@ -448,7 +1814,10 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
             }
         }
 
-        mTables.put(clazz, owl);
+        boolean background = clazz.isAnnotationPresent(Background.class);
+        for (Map.Entry<Method, QueryInfo> entry : owl.mQueryInfos.entrySet()) {
+            entry.getValue().background = background || entry.getKey().isAnnotationPresent(Background.class);
+        }
         return owl;
     }
 
@@ -484,6 +1853,117 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
         return sb.toString();
     }
 
+    static String buildJoinClause(String tableName, Join join) {
+        String[] tables = join.value();
+        String[] on = join.on();
+        boolean[] left = join.left();
+        int length = tables.length;
+        if (length != on.length) {
+            throw new IllegalArgumentException("value.length should be equal to on.length");
+        }
+        if (left.length != 0 && length != left.length) {
+            throw new IllegalArgumentException("left.length should be 0 or equal to value.length");
+        }
+        StringBuilder sb = new StringBuilder(tableName);
+        for (int i = 0; i < length; i++) {
+            sb.append(left.length != 0 && left[i] ? " left join " : " join ")
+                    .append(tables[i])
+                    .append(" on ")
+                    .append(on[i]);
+        }
+        return sb.toString();
+    }
+
+    // The first @Where argument becomes the MATCH expression. Rows come from the content table when there is one, and
+    // "snippet" and "rank" columns are added for models to pick up
+    private static void applyMatch(SelectInfo info, String ftsTable, Fts fts, Match match) {
+        String contentTable = fts != null && fts.content().length() != 0 ? fts.content() : null;
+        int snippetColumn = -1;
+        if (match.snippetColumn().length() != 0) {
+            if (fts == null || (snippetColumn = Arrays.asList(fts.value()).indexOf(match.snippetColumn())) < 0) {
+                throw new IllegalArgumentException("snippetColumn is not an @Fts column: " + match.snippetColumn());
+            }
+        }
+        info.selection = ftsTable + " match ?" + (TextUtils.isEmpty(info.selection) ? "" :
+                " and (" + info.selection + ')');
+        if (contentTable != null) {
+            info.from = contentTable + " join " + ftsTable + " on " + contentTable + ".rowid=" + ftsTable + ".docid";
+        }
+        ArrayList<String> projection = new ArrayList<>();
+        if (info.projection != null) {
+            projection.addAll(Arrays.asList(info.projection));
+        } else {
+            projection.add(contentTable != null ? contentTable + ".*" : "*");
+        }
+        projection.add(buildSnippetExpression(ftsTable, match.snippetStart(), match.snippetEnd(),
+                match.snippetEllipsis(), snippetColumn, match.snippetTokens()) + " as snippet");
+        projection.add(buildRankExpression(ftsTable) + " as rank");
+        info.projection = projection.toArray(new String[projection.size()]);
+        if (info.orderBy == null) {
+            info.orderBy = "rank desc";
+        }
+    }
+
+    static String buildSnippetExpression(String ftsTable, String start, String end, String ellipsis, int column,
+                                         int tokens) {
+        return "snippet(" + ftsTable + ',' + escape(start) + ',' + escape(end) + ',' + escape(ellipsis) + ',' +
+                column + ',' + tokens + ')';
+    }
+
+    // FTS3/4 in the framework has no ranking function, so rank by the number of matched phrases; offsets() lists
+    // four integers per match
+    static String buildRankExpression(String ftsTable) {
+        String offsets = "offsets(" + ftsTable + ')';
+        return "(length(" + offsets + ")-length(replace(" + offsets + ",' ',''))+1)/4";
+    }
+
+    static List<String> buildFtsSchema(String ftsTable, String contentTable, String[] columns, boolean fts4,
+                                       boolean externalContent) {
+        ArrayList<String> statements = new ArrayList<>();
+        String columnList = TextUtils.join(",", columns);
+        StringBuilder create = new StringBuilder("create virtual table ").append(ftsTable)
+                .append(fts4 ? " using fts4(" : " using fts3(");
+        if (contentTable != null && externalContent) {
+            create.append("content=\"").append(contentTable).append("\",");
+        }
+        statements.add(create.append(columnList).append(')').toString());
+        if (contentTable == null) {
+            return statements;
+        }
+
+        // An external content index reads the old text from the content table on delete, so deletes run before
+        String insert = "insert into " + ftsTable + "(docid," + columnList + ") values (new.rowid,new." +
+                TextUtils.join(",new.", columns) + ");";
+        String delete = "delete from " + ftsTable + " where docid=old.rowid;";
+        statements.add("create trigger " + ftsTable + "_ai after insert on " + contentTable + " begin " + insert +
+                " end");
+        statements.add("create trigger " + ftsTable + "_bd before delete on " + contentTable + " begin " + delete +
+                " end");
+        statements.add("create trigger " + ftsTable + "_bu before update of " + columnList + " on " + contentTable +
+                " begin " + delete + " end");
+        statements.add("create trigger " + ftsTable + "_au after update of " + columnList + " on " + contentTable +
+                " begin " + insert + " end");
+        if (externalContent) {
+            statements.add("insert into " + ftsTable + '(' + ftsTable + ") values ('rebuild')");
+        } else {
+            statements.add("insert into " + ftsTable + "(docid," + columnList + ") select rowid," + columnList +
+                    " from " + contentTable);
+        }
+        return statements;
+    }
+
+    static String[] labelQualifiedColumns(String[] projection) {
+        String[] labeled = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (PATTERN_QUALIFIED_COLUMN.matcher(column).matches()) {
+                column = column + " as \"" + OwlUtils.columnLabel(column) + '"';
+            }
+            labeled[i] = column;
+        }
+        return labeled;
+    }
+
     private static void parseParameters(Method method, QueryInfo queryInfo) {
         Annotation[][] parameterAnnotations = method.getParameterAnnotations();
         int length = parameterAnnotations.length;
@@ -502,18 +1982,30 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                 (ValueSettableQueryInfo) queryInfo) : null;
         String[] argumentColumnNames;
         boolean[] optional;
+        boolean[] compress;
         if (valueSettableQueryInfo != null) {
             argumentColumnNames = new String[length];
             optional = new boolean[length];
+            compress = new boolean[length];
             ValueSetter valueSetter = valueSettableQueryInfo.valueSetter();
             valueSetter.argumentColumnNames = argumentColumnNames;
             valueSetter.optional = optional;
+            valueSetter.compress = compress;
         } else {
             argumentColumnNames = null;
             optional = null;
+            compress = null;
         }
 
+        Class[] parameterTypes = method.getParameterTypes();
         for (int i = 0; i < length; i++) {
+            if (parameterTypes[i] == CancellationToken.class) {
+                if (!(queryInfo instanceof SelectInfo)) {
+                    throw new IllegalArgumentException("CancellationToken is supported for @Query only");
+                }
+                ((SelectInfo) queryInfo).cancellationTokenIndex = i;
+                continue;
+            }
             Annotation[] annotations = parameterAnnotations[i];
             for (Annotation annotation : annotations) {
                 if (isSelectionArgument != null && annotation instanceof Where) {
@@ -521,6 +2013,7 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
                 }
                 if (argumentColumnNames != null && annotation instanceof Value) {
                     argumentColumnNames[i] = ((Value) annotation).value();
+                    compress[i] = ((Value) annotation).compress();
                 }
                 if (optional != null && annotation instanceof Optional) {
                     optional[i] = true;
@@ -530,6 +2023,37 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
     }
 
     static ContentValues makeValues(ValueSetter valueSetter, Object[] args) {
+        return makeValues(valueSetter, args, false);
+    }
+
+    // Until the write is committed the models stay dirty, so a rolled back change is written again next time
+    private void markValuesWritten(Object[] args) {
+        if (args == null) return;
+        TransactionState state = mTransactionState.get();
+        if (state == null ? getWritableDatabase().inTransaction() : state.outerIsLegacy) {
+            // The outcome of a transaction started with beginTransaction() can't be seen from here
+            return;
+        }
+        for (Object arg : args) {
+            if (!(arg instanceof TrackedModel)) continue;
+            TrackedModel model = (TrackedModel) arg;
+            Object[] snapshot = PlainDataModel.takeSnapshot(model);
+            if (state == null) {
+                model.snapshot = snapshot;
+            } else {
+                state.written.add(Pair.create(model, snapshot));
+            }
+        }
+    }
+
+    private static void markWrittenClean(TransactionState state) {
+        for (Pair<TrackedModel, Object[]> written : state.written) {
+            written.first.snapshot = written.second;
+        }
+        state.written.clear();
+    }
+
+    static ContentValues makeValues(ValueSetter valueSetter, Object[] args, boolean changedOnly) {
         String[] names = valueSetter.argumentColumnNames;
         boolean[] optional = valueSetter.optional;
         List<Map.Entry<String, Object>> constValues = valueSetter.constantValues;
@@ -542,8 +2066,14 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
 
             boolean isOptional = optional[i];
             Object value = args[i];
-            if (!isOptional || value != null) {
-                OwlUtils.putValue(values, column, value);
+            if (changedOnly && value instanceof TrackedModel) {
+                PlainDataModel.putChangedInto(values, (TrackedModel) value);
+            } else if (!isOptional || value != null) {
+                if (valueSetter.compress[i]) {
+                    OwlUtils.putCompressedValue(values, column, value);
+                } else {
+                    OwlUtils.putValue(values, column, value);
+                }
             }
         }
         if (constValues != null) {
@@ -606,6 +2136,138 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
         db.execSQL("create table " + getTableName(clazz) + '(' + TextUtils.join(",", columns) + ')');
     }
 
+    // Creates the virtual table declared with @Fts, plus triggers that keep it in sync with the content table and the
+    // rows the content table already has. External content tables need SQLite 3.7.9, so before Jelly Bean the text
+    // is stored in the index as well.
+    public void createFtsTable(SQLiteDatabase db, Class clazz) {
+        Fts fts = (Fts) clazz.getAnnotation(Fts.class);
+        if (fts == null) {
+            throw new IllegalArgumentException("@Fts missing");
+        }
+        String contentTable = fts.content().length() != 0 ? fts.content() : null;
+        for (String statement : buildFtsSchema(getTableName(clazz), contentTable, fts.value(),
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB,
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)) {
+            db.execSQL(statement);
+        }
+    }
+
+    // Creates the @Summary table of the given table, fills it from the current rows and adds the triggers that keep it
+    // up to date. It has the group columns as its primary key, a row_count column and a sum_<column> per summed column.
+    public void createSummaryTable(SQLiteDatabase db, Class clazz) {
+        Summary summary = (Summary) clazz.getAnnotation(Summary.class);
+        if (summary == null) {
+            throw new IllegalArgumentException("@Summary missing");
+        }
+        String tableName = getTableName(clazz);
+        String[] groupBy = summary.groupBy();
+        for (String statement : buildSummarySchema(tableName, summary.table(), groupBy,
+                findNullableColumns(db, tableName, groupBy), summary.sum())) {
+            db.execSQL(statement);
+        }
+    }
+
+    // Only columns declared "not null" count as non-null; anything else may hold NULL
+    private static boolean[] findNullableColumns(SQLiteDatabase db, String tableName, String[] columns) {
+        boolean[] nullable = new boolean[columns.length];
+        Arrays.fill(nullable, true);
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ')', null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            int notNullIndex = cursor.getColumnIndex("notnull");
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(nameIndex);
+                for (int i = 0; i < columns.length; i++) {
+                    if (name.equalsIgnoreCase(columns[i]) && cursor.getInt(notNullIndex) != 0) {
+                        nullable[i] = false;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return nullable;
+    }
+
+    static List<String> buildSummarySchema(String sourceTable, String summaryTable, String[] groupBy,
+                                           boolean[] nullable, String[] sum) {
+        if (groupBy.length == 0) {
+            throw new IllegalArgumentException("@Summary needs at least one groupBy column");
+        }
+        for (String column : groupBy) {
+            Predicate.checkColumn(column);
+        }
+        for (String column : sum) {
+            Predicate.checkColumn(column);
+        }
+        String groupColumns = TextUtils.join(",", groupBy);
+        ArrayList<String> statements = new ArrayList<>();
+
+        StringBuilder create = new StringBuilder("create table ").append(summaryTable).append('(')
+                .append(groupColumns).append(",row_count integer not null default 0");
+        for (String column : sum) {
+            create.append(",sum_").append(column).append(" not null default 0");
+        }
+        statements.add(create.append(",primary key (").append(groupColumns).append("))").toString());
+
+        StringBuilder fill = new StringBuilder("insert into ").append(summaryTable).append('(').append(groupColumns)
+                .append(",row_count");
+        for (String column : sum) {
+            fill.append(",sum_").append(column);
+        }
+        fill.append(") select ").append(groupColumns).append(",count(*)");
+        for (String column : sum) {
+            fill.append(",coalesce(sum(").append(column).append("),0)");
+        }
+        statements.add(fill.append(" from ").append(sourceTable).append(" group by ").append(groupColumns)
+                .toString());
+
+        String add = buildSummaryChange(summaryTable, groupBy, nullable, sum, "new", '+');
+        String remove = buildSummaryChange(summaryTable, groupBy, nullable, sum, "old", '-');
+        ArrayList<String> watched = new ArrayList<>(Arrays.asList(groupBy));
+        watched.addAll(Arrays.asList(sum));
+        statements.add("create trigger " + summaryTable + "_ai after insert on " + sourceTable + " begin " + add +
+                " end");
+        statements.add("create trigger " + summaryTable + "_ad after delete on " + sourceTable + " begin " +
+                remove + " end");
+        statements.add("create trigger " + summaryTable + "_au after update of " + TextUtils.join(",", watched) +
+                " on " + sourceTable + " begin " + remove + ' ' + add + " end");
+        return statements;
+    }
+
+    // Nullable group columns match with "is" so that a NULL group gets a row of its own, the others with "=" so the
+    // primary key index is used; the primary key doesn't catch duplicate NULLs, hence "where not exists" instead of
+    // "insert or ignore"
+    private static String buildSummaryChange(String summaryTable, String[] groupBy, boolean[] nullable, String[] sum,
+                                             String row, char operator) {
+        StringBuilder match = new StringBuilder();
+        for (int i = 0; i < groupBy.length; i++) {
+            if (i > 0) {
+                match.append(" and ");
+            }
+            match.append(groupBy[i]).append(nullable[i] ? " is " : " = ").append(row).append('.').append(groupBy[i]);
+        }
+        StringBuilder sb = new StringBuilder();
+        if (operator == '+') {
+            sb.append("insert into ").append(summaryTable).append('(').append(TextUtils.join(",", groupBy))
+                    .append(") select ").append(row).append('.')
+                    .append(TextUtils.join("," + row + '.', groupBy))
+                    .append(" where not exists (select 1 from ").append(summaryTable).append(" where ")
+                    .append(match).append("); ");
+        }
+        sb.append("update ").append(summaryTable).append(" set row_count=row_count").append(operator).append('1');
+        for (String column : sum) {
+            sb.append(",sum_").append(column).append("=sum_").append(column).append(operator).append("coalesce(")
+                    .append(row).append('.').append(column).append(",0)");
+        }
+        sb.append(" where ").append(match).append(';');
+        if (operator == '-') {
+            sb.append(" delete from ").append(summaryTable).append(" where ").append(match)
+                    .append(" and row_count=0;");
+        }
+        return sb.toString();
+    }
+
     public void createIndex(SQLiteDatabase db, Class clazz, String... columns) {
         String tableName = getTableName(clazz);
         db.execSQL("create index " + tableName + '_' + TextUtils.join("_", columns) + " on "
@@ -651,7 +2313,7 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
     }
 
     public void beginTransaction() {
-        mLock.lock();
+        lock();
         getWritableDatabase().beginTransaction();
     }
 
@@ -664,6 +2326,210 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
         getWritableDatabase().setTransactionSuccessful();
     }
 
+    public <T> T runInTransaction(Callable<T> callable) {
+        return runInTransaction(TRANSACTION_EXCLUSIVE, callable);
+    }
+
+    public <T> T runInTransaction(int mode, Callable<T> callable) {
+        if (mode == TRANSACTION_READ_ONLY) {
+            return runReadOnly(callable);
+        }
+        TransactionState state = mTransactionState.get();
+        if (state != null && state.readOnly) {
+            throw new IllegalStateException("Cannot start a writable transaction inside a read-only one");
+        }
+        lock();
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            String savepoint = null;
+            int writtenMark = 0;
+            if (db.inTransaction()) {
+                if (state == null) {
+                    // Nested in a transaction started by beginTransaction()
+                    state = new TransactionState();
+                    state.outerIsLegacy = true;
+                    mTransactionState.set(state);
+                }
+                savepoint = "owl_savepoint_" + (++state.depth);
+                writtenMark = state.written.size();
+                db.execSQL("savepoint " + savepoint);
+            } else {
+                state = new TransactionState();
+                state.mode = mode;
+                mTransactionState.set(state);
+                beginTransaction(db, mode);
+            }
+
+            boolean successful = false;
+            try {
+                T result = callable.call();
+                successful = true;
+                return result;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                if (savepoint != null) {
+                    if (!successful) {
+                        // The leading ';' keeps API 16-27 from taking this for a ROLLBACK and ending the whole
+                        // framework transaction
+                        db.execSQL(";rollback to " + savepoint);
+                        state.written.subList(writtenMark, state.written.size()).clear();
+                    }
+                    db.execSQL("release " + savepoint);
+                    if (--state.depth == 0 && state.outerIsLegacy) {
+                        mTransactionState.remove();
+                    }
+                } else {
+                    mTransactionState.remove();
+                    if (successful) {
+                        db.setTransactionSuccessful();
+                    }
+                    db.endTransaction();
+                    if (successful) {
+                        markWrittenClean(state);
+                    }
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Neither a write transaction nor the lock is held, so other threads and connections can keep reading and
+    // writing. Where the platform has a deferred read transaction (Android 14+ with the app having enabled the
+    // framework's WAL connection pool) the reads see one snapshot; elsewhere each query sees the latest committed
+    // data and only writes are turned away.
+    private <T> T runReadOnly(Callable<T> callable) {
+        TransactionState state = mTransactionState.get();
+        if (state != null) {
+            // The outer transaction already decides what is seen, so only writes have to be turned away
+            boolean wasReadOnly = state.readOnly;
+            state.readOnly = true;
+            try {
+                return call(callable);
+            } finally {
+                state.readOnly = wasReadOnly;
+            }
+        }
+        state = new TransactionState();
+        state.mode = TRANSACTION_READ_ONLY;
+        state.readOnly = true;
+        mTransactionState.set(state);
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            if (!mLock.isHeldByCurrentThread() && !db.inTransaction() && beginReadOnlyTransaction(db)) {
+                try {
+                    T result = call(callable);
+                    db.setTransactionSuccessful();
+                    return result;
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            return call(callable);
+        } finally {
+            mTransactionState.remove();
+        }
+    }
+
+    // beginTransactionReadOnly() is newer than the SDK this library compiles against
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static boolean beginReadOnlyTransaction(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < VERSION_CODE_UPSIDE_DOWN_CAKE || !db.isWriteAheadLoggingEnabled()) {
+            return false;
+        }
+        try {
+            SQLiteDatabase.class.getMethod("beginTransactionReadOnly").invoke(db);
+            return true;
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static <T> T call(Callable<T> callable) {
+        try {
+            return callable.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Call between batches of a long transaction: when interactive callers are waiting for the lock, the work done so
+    // far is committed, they get the lock, and a new transaction in the same mode is started afterwards
+    public boolean yieldTransaction() {
+        TransactionState state = mTransactionState.get();
+        if (state == null || state.readOnly || state.outerIsLegacy || state.depth != 0 ||
+                mLock.getHoldCount() != 1 || hasCursorHolds(Thread.currentThread())) {
+            // Read-only transactions, savepoints and open Iterables can't be given up here
+            return false;
+        }
+        if (mInteractiveWaiters == 0) {
+            return false;
+        }
+        SQLiteDatabase db = getWritableDatabase();
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        markWrittenClean(state);
+        mLock.unlock();
+        acquireLock(true);
+        beginTransaction(db, state.mode);
+        return true;
+    }
+
+    public <T> T runWithPriority(int priority, Callable<T> callable) {
+        int previousPriority = setPriority(priority);
+        try {
+            return callable.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            setPriority(previousPriority);
+        }
+    }
+
+    public int getPriority() {
+        Integer priority = mPriority.get();
+        return priority != null ? priority : PRIORITY_INTERACTIVE;
+    }
+
+    private int setPriority(int priority) {
+        if (priority != PRIORITY_INTERACTIVE && priority != PRIORITY_BACKGROUND) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+        int previousPriority = getPriority();
+        mPriority.set(priority);
+        return previousPriority;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void beginTransaction(SQLiteDatabase db, int mode) {
+        // The framework has no public deferred begin, so everything but exclusive maps to BEGIN IMMEDIATE
+        if (mode == TRANSACTION_EXCLUSIVE || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            db.beginTransaction();
+        } else {
+            db.beginTransactionNonExclusive();
+        }
+    }
+
+    private void checkWritable() {
+        TransactionState state = mTransactionState.get();
+        if (state != null && state.readOnly) {
+            throw new IllegalStateException("Cannot write inside a read-only transaction");
+        }
+    }
+
     @SuppressWarnings("deprecation")
     private void setLockingDisabled(SQLiteDatabase db) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) return;
@@ -675,43 +2541,216 @@ public abstract class OwlDatabaseOpenHelper extends SQLiteOpenHelper {
         }
     }
 
+    // Subclasses overriding this have to call through, otherwise the storage profile is applied late
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        applyStorageProfile(db);
+    }
+
+    private void applyStorageProfile(SQLiteDatabase db) {
+        StorageProfile profile = mStorageProfile;
+        if (profile == null) return;
+        SQLiteDatabase configuredDatabase = mConfiguredDatabase == null ? null : mConfiguredDatabase.get();
+        if (configuredDatabase == db) return;
+        mConfiguredDatabase = new WeakReference<>(db);
+        setJournalMode(db, profile.getJournalMode());
+        for (String statement : profile.toStatements()) {
+            executePragma(db, statement);
+        }
+    }
+
+    // WAL is set with the PRAGMA instead of enableWriteAheadLogging(), which would move reads to the framework's extra
+    // connections that the rest of the profile never reaches; every access goes through mLock anyway, so they add no
+    // concurrency. SQLite before 3.7 (below Honeycomb) keeps its old mode.
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void setJournalMode(SQLiteDatabase db, String journalMode) {
+        if (journalMode == null || db.isReadOnly()) return;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            db.disableWriteAheadLogging();
+        }
+        executePragma(db, "PRAGMA journal_mode=" + journalMode);
+    }
+
+    // PRAGMAs that echo a row are rejected by execSQL on newer releases
+    static String executePragma(SQLiteDatabase db, String statement) {
+        Cursor cursor = db.rawQuery(statement, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public StorageProfile getStorageProfile() {
+        return mStorageProfile;
+    }
+
+    // Values of the connection that every query and write runs on
+    public Map<String, String> getEffectivePragmas() {
+        SQLiteDatabase db = getWritableDatabase();
+        LinkedHashMap<String, String> pragmas = new LinkedHashMap<>();
+        lock();
+        try {
+            for (String name : StorageProfile.PRAGMA_NAMES) {
+                pragmas.put(name, executePragma(db, "PRAGMA " + name));
+            }
+        } finally {
+            mLock.unlock();
+        }
+        return pragmas;
+    }
+
     @Override
     public SQLiteDatabase getReadableDatabase() {
+        awaitOpen();
         SQLiteDatabase db = super.getReadableDatabase();
         setLockingDisabled(db);
+        configureLegacy(db);
         return db;
     }
 
     @Override
     public SQLiteDatabase getWritableDatabase() {
+        awaitOpen();
         SQLiteDatabase db = super.getWritableDatabase();
         setLockingDisabled(db);
+        configureLegacy(db);
         return db;
     }
 
-    void addCursorIterator(CursorIterator it) {
-        Set<CursorIterator> set = mCursorIterators.get();
-        if (set == null) {
-            set = new HashSet<>();
-            mCursorIterators.set(set);
+    // onConfigure() is only called from Jelly Bean on
+    private void configureLegacy(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN || mStorageProfile == null) return;
+        lock();
+        try {
+            applyStorageProfile(db);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void lock() {
+        if (mLock.isHeldByCurrentThread()) {
+            mLock.lock();
+            return;
         }
-        set.add(it);
+        // The open thread takes the lock itself in configureLegacy(), so it must never be waited for with the lock
+        // held
+        awaitOpen();
+        acquireLock(getPriority() == PRIORITY_BACKGROUND);
     }
 
-    void removeCursorIterator(CursorIterator it) {
-        Set<CursorIterator> set = mCursorIterators.get();
-        if (set != null) {
-            set.remove(it);
+    private void acquireLock(boolean background) {
+        Thread currentThread = Thread.currentThread();
+        while (true) {
+            if (background) {
+                lockBackground();
+            } else {
+                lockInteractive();
+            }
+            synchronized (mCursorHoldMonitor) {
+                if (mCursorHolds == 0 || mCursorHoldOwner == currentThread) return;
+            }
+            mLock.unlock();
+            awaitCursorHolds();
         }
     }
 
-    public void closeCursors() {
-        Set<CursorIterator> set = mCursorIterators.get();
-        if (set != null) {
-            for (CursorIterator it : set) {
-                it.close(true);
+    // Open Iterables keep other threads out until they are closed. Unlike a hold on mLock this can be given back from
+    // any thread, so the reaper can release the result of a thread that abandoned it and is gone.
+    void acquireCursorHold() {
+        synchronized (mCursorHoldMonitor) {
+            mCursorHoldOwner = Thread.currentThread();
+            ++mCursorHolds;
+        }
+    }
+
+    void releaseCursorHold() {
+        synchronized (mCursorHoldMonitor) {
+            if (--mCursorHolds == 0) {
+                mCursorHoldOwner = null;
+                mCursorHoldMonitor.notifyAll();
+            }
+        }
+    }
+
+    private boolean hasCursorHolds(Thread thread) {
+        synchronized (mCursorHoldMonitor) {
+            return mCursorHolds != 0 && mCursorHoldOwner == thread;
+        }
+    }
+
+    private void awaitCursorHolds() {
+        Thread currentThread = Thread.currentThread();
+        boolean interrupted = false;
+        synchronized (mCursorHoldMonitor) {
+            while (mCursorHolds != 0 && mCursorHoldOwner != currentThread) {
+                try {
+                    mCursorHoldMonitor.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            currentThread.interrupt();
+        }
+    }
+
+    private void lockInteractive() {
+        if (mLock.tryLock()) return;
+        synchronized (mPriorityMonitor) {
+            ++mInteractiveWaiters;
+        }
+        try {
+            mLock.lock();
+        } finally {
+            synchronized (mPriorityMonitor) {
+                if (--mInteractiveWaiters == 0) {
+                    mPriorityMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    // Lets waiting interactive callers go first, but only for so long that background work can't starve
+    private void lockBackground() {
+        long deadline = System.nanoTime() + BACKGROUND_MAX_DEFER_NANOS;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (mPriorityMonitor) {
+                    long remaining;
+                    while (mInteractiveWaiters > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(mPriorityMonitor, remaining);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    mLock.lock();
+                    return;
+                }
+                try {
+                    if (mLock.tryLock(BACKGROUND_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        if (mInteractiveWaiters == 0) return;
+                        mLock.unlock();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
-            set.clear();
         }
     }
+
+    public void closeCursors() {
+        CursorHandle.closeAll(this, Thread.currentThread());
+    }
 }
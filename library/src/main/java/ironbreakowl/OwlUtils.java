@@ -2,13 +2,38 @@ package ironbreakowl;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteProgram;
+import android.os.Build;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.Nullable;
 
 import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.List;
 
 class OwlUtils {
+    static final String TAG = "IronbreakOwl";
+
+    // SQLITE_MAX_VARIABLE_NUMBER of SQLite builds before 3.32
+    static final int MAX_VARIABLE_NUMBER = 999;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Cursor.getColumnIndex() drops everything up to the last '.', so qualified columns are selected under a label
+    public static String columnLabel(String column) {
+        return column.indexOf('.') < 0 ? column : column.replace('.', '$');
+    }
+
+    public static int getColumnIndex(Cursor cursor, String column, String label) {
+        int columnIndex = cursor.getColumnIndex(label);
+        if (columnIndex < 0 && label != column) {
+            columnIndex = cursor.getColumnIndex(column);
+        }
+        return columnIndex;
+    }
+
     public static Object readValue(Cursor cursor, int columnIndex, Class clazz,
                                    @Nullable Parcelable.Creator parcelCreator) {
         if (clazz == Integer.TYPE || clazz == Integer.class) {
@@ -43,6 +68,124 @@ class OwlUtils {
         }
     }
 
+    public static Object readValue(Cursor cursor, int columnIndex, Class clazz,
+                                   @Nullable Parcelable.Creator parcelCreator, boolean compressed) {
+        if (compressed && isCompressible(clazz)) {
+            return decodeStored(readStored(cursor, columnIndex), clazz, parcelCreator);
+        }
+        return readValue(cursor, columnIndex, clazz, parcelCreator);
+    }
+
+    public static boolean isCompressible(Class clazz) {
+        return clazz == String.class || clazz == byte[].class || Parcelable.class.isAssignableFrom(clazz);
+    }
+
+    // A compressed column holds text or a blob depending on whether the value was large enough to compress
+    public static Object readStored(Cursor cursor, int columnIndex) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            switch (cursor.getType(columnIndex)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    return null;
+                case Cursor.FIELD_TYPE_BLOB:
+                    return cursor.getBlob(columnIndex);
+                default:
+                    return cursor.getString(columnIndex);
+            }
+        }
+        try {
+            return cursor.getString(columnIndex);
+        } catch (SQLiteException e) {
+            return cursor.getBlob(columnIndex);
+        }
+    }
+
+    public static Object decodeStored(Object stored, Class clazz, @Nullable Parcelable.Creator parcelCreator) {
+        if (stored == null) {
+            return null;
+        }
+        if (stored instanceof String && clazz == String.class) {
+            return stored;
+        }
+        byte[] bytes = decodeStoredBytes(stored);
+        if (clazz == String.class) {
+            return new String(bytes, UTF_8);
+        } else if (clazz == byte[].class) {
+            return bytes;
+        } else {
+            return unmarshall(bytes, parcelCreator != null ? parcelCreator : getParcelCreator(clazz));
+        }
+    }
+
+    public static byte[] decodeStoredBytes(Object stored) {
+        if (stored == null) {
+            return null;
+        }
+        return Compression.decompress(stored instanceof String ? ((String) stored).getBytes(UTF_8) : (byte[]) stored);
+    }
+
+    public static Object unmarshall(byte[] bytes, Parcelable.Creator parcelCreator) {
+        Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(bytes, 0, bytes.length);
+        parcel.setDataPosition(0);
+        Object obj = parcelCreator.createFromParcel(parcel);
+        parcel.recycle();
+        return obj;
+    }
+
+    public static void putCompressedValue(ContentValues values, String column, Object value) {
+        byte[] bytes;
+        if (value instanceof CharSequence) {
+            String s = value.toString();
+            if (s.length() < Compression.THRESHOLD / 3) {
+                values.put(column, s);
+                return;
+            }
+            bytes = s.getBytes(UTF_8);
+            byte[] compressed = Compression.compress(bytes);
+            if (compressed == bytes) {
+                values.put(column, s);
+                return;
+            }
+            values.put(column, compressed);
+            return;
+        } else if (value instanceof byte[]) {
+            bytes = (byte[]) value;
+        } else if (value instanceof Parcelable) {
+            bytes = marshall((Parcelable) value);
+        } else {
+            putValue(values, column, value);
+            return;
+        }
+        values.put(column, Compression.compress(bytes));
+    }
+
+    public static String inList(List<?> values, int start, int end, List<String> args) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                sb.append(',');
+            }
+            Object value = values.get(i);
+            if (NonStringArgumentBinder.isNumber(value)) {
+                sb.append(value);
+            } else if (value instanceof Boolean) {
+                sb.append((Boolean) value ? '1' : '0');
+            } else {
+                sb.append('?');
+                args.add(value.toString());
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    // Integral keys of different widths (int field vs long field) must hash the same
+    public static Object normalizeKey(Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        }
+        return key;
+    }
+
     public static Parcelable.Creator getParcelCreator(Class clazz) {
         try {
             Field creatorField = clazz.getField("CREATOR");
@@ -57,6 +200,31 @@ class OwlUtils {
         }
     }
 
+    public static byte[] marshall(Parcelable value) {
+        Parcel parcel = Parcel.obtain();
+        value.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        byte[] bytes = parcel.marshall();
+        parcel.recycle();
+        return bytes;
+    }
+
+    public static void bindValue(SQLiteProgram statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
     public static void putValue(ContentValues values, String column, Object value) {
         if (value == null) {
             values.putNull(column);
@@ -81,11 +249,7 @@ class OwlUtils {
         } else if (value instanceof CharSequence) {
             values.put(column, value.toString());
         } else if (value instanceof Parcelable) {
-            Parcel parcel = Parcel.obtain();
-            ((Parcelable) value).writeToParcel(parcel, 0);
-            parcel.setDataPosition(0);
-            byte[] bytes = parcel.marshall();
-            values.put(column, bytes);
+            values.put(column, marshall((Parcelable) value));
         } else if (value instanceof Single) {
             Single optionalValue = (Single) value;
             if (optionalValue.hasValue) {
@@ -0,0 +1,132 @@
+package ironbreakowl;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+public class PagedList<T> extends AbstractList<T> implements RandomAccess {
+    interface PageLoader<T> {
+        List<T> load(int offset, int limit);
+    }
+
+    private final PageLoader<T> mLoader;
+    private final int mSize;
+    private final int mPageSize;
+    private final Executor mPrefetchExecutor;
+    private final LinkedHashMap<Integer, List<T>> mPages;
+    private final HashMap<Integer, FutureTask<List<T>>> mPendingPages = new HashMap<>();
+
+    PagedList(PageLoader<T> loader, int size, int pageSize, final int maxPages, Executor prefetchExecutor) {
+        if (pageSize <= 0 || maxPages <= 0) {
+            throw new IllegalArgumentException("pageSize and maxPages should be positive");
+        }
+        mLoader = loader;
+        mSize = size;
+        mPageSize = pageSize;
+        mPrefetchExecutor = prefetchExecutor;
+        mPages = new LinkedHashMap<Integer, List<T>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> eldest) {
+                return size() > maxPages;
+            }
+        };
+    }
+
+    @Override
+    public T get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+        int page = index / mPageSize;
+        List<T> rows = getPage(page);
+        prefetch(page + 1);
+        prefetch(page - 1);
+        int offset = index - page * mPageSize;
+        // Rows may have been deleted since the list was created
+        return offset < rows.size() ? rows.get(offset) : null;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    private List<T> getPage(int page) {
+        FutureTask<List<T>> task;
+        synchronized (this) {
+            List<T> rows = mPages.get(page);
+            if (rows != null) {
+                return rows;
+            }
+            task = mPendingPages.get(page);
+            if (task == null) {
+                task = newPageTask(page);
+                mPendingPages.put(page, task);
+            }
+        }
+        // Runs the load here unless a prefetch has already started it
+        task.run();
+        return await(task);
+    }
+
+    private void prefetch(int page) {
+        if (page < 0 || page * mPageSize >= mSize) return;
+        FutureTask<List<T>> task;
+        synchronized (this) {
+            if (mPages.containsKey(page) || mPendingPages.containsKey(page)) return;
+            task = newPageTask(page);
+            mPendingPages.put(page, task);
+        }
+        mPrefetchExecutor.execute(task);
+    }
+
+    private FutureTask<List<T>> newPageTask(final int page) {
+        return new FutureTask<>(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                List<T> rows = null;
+                try {
+                    rows = mLoader.load(page * mPageSize, mPageSize);
+                    return rows;
+                } finally {
+                    synchronized (PagedList.this) {
+                        mPendingPages.remove(page);
+                        if (rows != null) {
+                            mPages.put(page, rows);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static <T> T await(FutureTask<T> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -2,25 +2,50 @@ package ironbreakowl;
 
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.os.Parcel;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.Parcelable;
 import android.util.Pair;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 class PlainDataModel {
-    private static final HashMap<Class, PlainDataModel> sCollectors = new HashMap<>();
+    private static final ConcurrentHashMap<Class, PlainDataModel> sCollectors = new ConcurrentHashMap<>();
+    // Models whose relations are being resolved on this thread, so that related models can refer back to them
+    private static final ThreadLocal<HashMap<Class, PlainDataModel>> sPendingCollectors =
+            new ThreadLocal<HashMap<Class, PlainDataModel>>() {
+                @Override
+                protected HashMap<Class, PlainDataModel> initialValue() {
+                    return new HashMap<>();
+                }
+            };
 
     private static class FieldInfo {
         public Column column;
+        public String columnLabel;
+        public boolean compress;
         public Class type;
         public Parcelable.Creator parcelCreator;
     }
 
+    private static class RelationInfo {
+        public Field field;
+        public Relation relation;
+        public Class childClass;
+        public Field parentKeyField;
+        public Field childKeyField;
+    }
+
     public final ArrayList<Pair<Field, FieldInfo>> fields = new ArrayList<>();
+    private final ArrayList<RelationInfo> mRelations = new ArrayList<>();
 
     public static void putInto(ContentValues values, Object o) {
         Class<?> clazz = o.getClass();
@@ -30,8 +55,7 @@ class PlainDataModel {
                 try {
                     Field field = entry.first;
                     FieldInfo info = entry.second;
-                    Column column = info.column;
-                    OwlUtils.putValue(values, column.value(), field.get(o));
+                    putValue(values, info, field.get(o));
                 } catch (RuntimeException e) {
                     throw e;
                 } catch (Exception e) {
@@ -41,6 +65,87 @@ class PlainDataModel {
         }
     }
 
+    public static void putChangedInto(ContentValues values, TrackedModel o) {
+        Object[] snapshot = o.snapshot;
+        if (snapshot == null) {
+            putInto(values, o);
+            return;
+        }
+        PlainDataModel model = getModel(o.getClass());
+        ArrayList<Pair<Field, FieldInfo>> fields = model.fields;
+        try {
+            for (int i = 0; i < fields.size(); i++) {
+                Pair<Field, FieldInfo> entry = fields.get(i);
+                Object value = entry.first.get(o);
+                if (!isSameValue(snapshot[i], snapshotValue(value))) {
+                    putValue(values, entry.second, value);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void putValue(ContentValues values, FieldInfo info, Object value) {
+        if (info.compress) {
+            OwlUtils.putCompressedValue(values, info.column.value(), value);
+        } else {
+            OwlUtils.putValue(values, info.column.value(), value);
+        }
+    }
+
+    static boolean hasChanges(TrackedModel o) {
+        ContentValues values = new ContentValues();
+        putChangedInto(values, o);
+        return values.size() != 0;
+    }
+
+    // Parcelables are snapshotted as the bytes they were read from, so reading a row never marshalls them again
+    private static void markClean(Object o, PlainDataModel model, Object[] storedParcels)
+            throws IllegalAccessException {
+        if (!(o instanceof TrackedModel)) return;
+        ArrayList<Pair<Field, FieldInfo>> fields = model.fields;
+        Object[] snapshot = new Object[fields.size()];
+        for (int i = 0; i < snapshot.length; i++) {
+            Object stored = storedParcels == null ? null : storedParcels[i];
+            snapshot[i] = stored != null ? stored : snapshotValue(fields.get(i).first.get(o));
+        }
+        ((TrackedModel) o).snapshot = snapshot;
+    }
+
+    static Object[] takeSnapshot(TrackedModel o) {
+        PlainDataModel model = getModel(o.getClass());
+        ArrayList<Pair<Field, FieldInfo>> fields = model.fields;
+        Object[] snapshot = new Object[fields.size()];
+        try {
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = snapshotValue(fields.get(i).first.get(o));
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        return snapshot;
+    }
+
+    // byte[] and Parcelable can be modified in place, so they are compared by content
+    private static Object snapshotValue(Object value) {
+        if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        } else if (value instanceof Parcelable) {
+            return OwlUtils.marshall((Parcelable) value);
+        }
+        return value;
+    }
+
+    private static boolean isSameValue(Object a, Object b) {
+        if (a instanceof byte[] && b instanceof byte[]) {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        return a == null ? b == null : a.equals(b);
+    }
+
     public static <T> ArrayList<T> collect(final Cursor cursor, Class<T> clazz) {
         final PlainDataModel collector = getModel(clazz);
         ArrayList<T> list = new ArrayList<>();
@@ -57,6 +162,160 @@ class PlainDataModel {
         return list;
     }
 
+    public static void fillRelations(SQLiteDatabase db, List<?> parents, Class clazz) {
+        fillRelations(db, parents, clazz, new HashMap<RelationInfo, HashSet<Object>>());
+    }
+
+    private static void fillRelations(SQLiteDatabase db, List<?> parents, Class clazz,
+                                      HashMap<RelationInfo, HashSet<Object>> filledKeys) {
+        PlainDataModel model = getModel(clazz);
+        if (model.mRelations.isEmpty() || parents.isEmpty()) return;
+        try {
+            for (RelationInfo relationInfo : model.mRelations) {
+                fillRelation(db, parents, relationInfo, filledKeys);
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Every key is loaded at most once per relation, so cyclic data ends; a row that comes around again keeps its
+    // relation field null instead of being loaded a second time
+    private static void fillRelation(SQLiteDatabase db, List<?> parents, RelationInfo relationInfo,
+                                     HashMap<RelationInfo, HashSet<Object>> filledKeys)
+            throws IllegalAccessException {
+        HashSet<Object> filled = filledKeys.get(relationInfo);
+        if (filled == null) {
+            filled = new HashSet<>();
+            filledKeys.put(relationInfo, filled);
+        }
+        HashMap<Object, ArrayList<Object>> childrenByKey = new HashMap<>();
+        ArrayList<Object> keys = new ArrayList<>();
+        for (Object parent : parents) {
+            Object key = OwlUtils.normalizeKey(relationInfo.parentKeyField.get(parent));
+            if (key != null && !childrenByKey.containsKey(key) && filled.add(key)) {
+                childrenByKey.put(key, new ArrayList<>());
+                keys.add(key);
+            }
+        }
+
+        Relation relation = relationInfo.relation;
+        Class childClass = relationInfo.childClass;
+        int keyCount = keys.size();
+        ArrayList<String> args = new ArrayList<>();
+        for (int start = 0; start < keyCount; start += OwlUtils.MAX_VARIABLE_NUMBER) {
+            int end = Math.min(start + OwlUtils.MAX_VARIABLE_NUMBER, keyCount);
+            args.clear();
+            String selection = relation.childColumn() + " in " + OwlUtils.inList(keys, start, end, args);
+            Cursor cursor = db.query(relation.table(), null, selection, args.toArray(new String[args.size()]),
+                    null, null, null);
+            ArrayList children;
+            try {
+                children = collect(cursor, childClass);
+            } finally {
+                cursor.close();
+            }
+            fillRelations(db, children, childClass, filledKeys);
+            for (Object child : children) {
+                Object key = OwlUtils.normalizeKey(relationInfo.childKeyField.get(child));
+                ArrayList<Object> list = childrenByKey.get(key);
+                if (list != null) {
+                    list.add(child);
+                }
+            }
+        }
+
+        for (Object parent : parents) {
+            Object key = OwlUtils.normalizeKey(relationInfo.parentKeyField.get(parent));
+            if (key == null) {
+                relationInfo.field.set(parent, new ArrayList<>());
+                continue;
+            }
+            ArrayList<Object> children = childrenByKey.get(key);
+            if (children != null) {
+                relationInfo.field.set(parent, children);
+            }
+        }
+    }
+
+    public static ArrayList<Object[]> collectRaw(Cursor cursor, Class clazz) {
+        PlainDataModel collector = getModel(clazz);
+        ArrayList<Pair<Field, FieldInfo>> fields = collector.fields;
+        int fieldCount = fields.size();
+        int[] columnIndices = new int[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            FieldInfo fieldInfo = fields.get(i).second;
+            columnIndices[i] = OwlUtils.getColumnIndex(cursor, fieldInfo.column.value(), fieldInfo.columnLabel);
+        }
+        ArrayList<Object[]> rows = new ArrayList<>();
+        while (cursor.moveToNext()) {
+            Object[] row = new Object[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                FieldInfo fieldInfo = fields.get(i).second;
+                Class type = fieldInfo.type;
+                // Parcelables and compressed values are left as stored so that decoding can run off the cursor thread
+                if (fieldInfo.compress && OwlUtils.isCompressible(type)) {
+                    row[i] = OwlUtils.readStored(cursor, columnIndices[i]);
+                } else if (Parcelable.class.isAssignableFrom(type)) {
+                    row[i] = cursor.getBlob(columnIndices[i]);
+                } else {
+                    row[i] = OwlUtils.readValue(cursor, columnIndices[i], type, null);
+                }
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    public static <T> void decodeRaw(List<Object[]> rawRows, int start, int end, Class<T> clazz, T[] out) {
+        PlainDataModel collector = getModel(clazz);
+        ArrayList<Pair<Field, FieldInfo>> fields = collector.fields;
+        try {
+            for (int r = start; r < end; r++) {
+                Object[] row = rawRows.get(r);
+                T obj = clazz.newInstance();
+                Object[] storedParcels = null;
+                for (int i = 0; i < row.length; i++) {
+                    Pair<Field, FieldInfo> pair = fields.get(i);
+                    FieldInfo fieldInfo = pair.second;
+                    Object value = row[i];
+                    if (fieldInfo.parcelCreator != null) {
+                        byte[] bytes = fieldInfo.compress ? OwlUtils.decodeStoredBytes(value) : (byte[]) value;
+                        value = null;
+                        if (bytes != null) {
+                            if (storedParcels == null) {
+                                storedParcels = new Object[row.length];
+                            }
+                            storedParcels[i] = bytes;
+                            value = OwlUtils.unmarshall(bytes, fieldInfo.parcelCreator);
+                        }
+                    } else if (fieldInfo.compress && OwlUtils.isCompressible(fieldInfo.type)) {
+                        value = OwlUtils.decodeStored(value, fieldInfo.type, null);
+                    }
+                    pair.first.set(obj, value);
+                }
+                markClean(obj, collector, storedParcels);
+                out[r] = obj;
+            }
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static <T> T readRow(Cursor cursor, Class<T> clazz) {
+        try {
+            return fetchRow(cursor, clazz, getModel(clazz));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public static <T> Single<T> readSingle(final Cursor cursor, Class<T> clazz) {
         final PlainDataModel collector = getModel(clazz);
         if (cursor.moveToNext()) {
@@ -73,13 +332,18 @@ class PlainDataModel {
     private static <T> T fetchRow(Cursor cursor, Class<T> clazz, PlainDataModel collector)
             throws InstantiationException, IllegalAccessException {
         T obj = clazz.newInstance();
-        for (Pair<Field, FieldInfo> pair : collector.fields) {
+        ArrayList<Pair<Field, FieldInfo>> fields = collector.fields;
+        Object[] storedParcels = null;
+        for (int i = 0; i < fields.size(); i++) {
+            Pair<Field, FieldInfo> pair = fields.get(i);
             Field field = pair.first;
             FieldInfo fieldInfo = pair.second;
             String columnName = fieldInfo.column.value();
-            int columnIndex = cursor.getColumnIndex(columnName);
+            int columnIndex = OwlUtils.getColumnIndex(cursor, columnName, fieldInfo.columnLabel);
             Class type = fieldInfo.type;
-            if (type == Integer.TYPE || type == Integer.class) {
+            if (fieldInfo.compress && fieldInfo.parcelCreator == null && OwlUtils.isCompressible(type)) {
+                field.set(obj, OwlUtils.readValue(cursor, columnIndex, type, null, true));
+            } else if (type == Integer.TYPE || type == Integer.class) {
                 field.setInt(obj, cursor.getInt(columnIndex));
             } else if (type == String.class) {
                 field.set(obj, cursor.getString(columnIndex));
@@ -96,28 +360,42 @@ class PlainDataModel {
             } else if (type == Short.TYPE || type == Short.class) {
                 field.setShort(obj, cursor.getShort(columnIndex));
             } else if (Parcelable.class.isAssignableFrom(type)) {
-                Parcel parcel = Parcel.obtain();
-                byte[] bytes = cursor.getBlob(columnIndex);
-                parcel.unmarshall(bytes, 0, bytes.length);
-                parcel.setDataPosition(0);
-                field.set(obj, fieldInfo.parcelCreator.createFromParcel(parcel));
-                parcel.recycle();
+                byte[] bytes = fieldInfo.compress ?
+                        OwlUtils.decodeStoredBytes(OwlUtils.readStored(cursor, columnIndex)) :
+                        cursor.getBlob(columnIndex);
+                if (bytes == null) {
+                    field.set(obj, null);
+                    continue;
+                }
+                field.set(obj, OwlUtils.unmarshall(bytes, fieldInfo.parcelCreator));
+                if (obj instanceof TrackedModel) {
+                    if (storedParcels == null) {
+                        storedParcels = new Object[fields.size()];
+                    }
+                    storedParcels[i] = bytes;
+                }
             } else {
                 throw new IllegalArgumentException("Unsupported type: " + type.getCanonicalName());
             }
         }
+        markClean(obj, collector, storedParcels);
         return obj;
     }
 
-    private static PlainDataModel getModel(Class clazz) {
-        synchronized (sCollectors) {
-            PlainDataModel collector = sCollectors.get(clazz);
-            if (collector == null) {
-                collector = parseClass(clazz);
-                sCollectors.put(clazz, collector);
+    static PlainDataModel getModel(Class clazz) {
+        PlainDataModel collector = sCollectors.get(clazz);
+        if (collector == null) {
+            collector = sPendingCollectors.get().get(clazz);
+            if (collector != null) {
+                return collector;
+            }
+            collector = parseClass(clazz);
+            PlainDataModel existing = sCollectors.putIfAbsent(clazz, collector);
+            if (existing != null) {
+                collector = existing;
             }
-            return collector;
         }
+        return collector;
     }
 
     private static PlainDataModel parseClass(Class clazz) {
@@ -125,16 +403,25 @@ class PlainDataModel {
             throw new IllegalArgumentException("Interface or abstract class is not allowed: "
                     + clazz.getCanonicalName());
         }
+        Class modelClass = clazz;
         PlainDataModel collector = new PlainDataModel();
         ArrayList<Pair<Field, FieldInfo>> fields = collector.fields;
         while (clazz != null && clazz != Object.class) {
             for (Field field : clazz.getDeclaredFields()) {
+                Relation relation = field.getAnnotation(Relation.class);
+                if (relation != null) {
+                    collector.mRelations.add(parseRelation(field, relation));
+                    continue;
+                }
+
                 Column column = field.getAnnotation(Column.class);
                 if (column == null) continue;
 
                 FieldInfo fieldInfo = new FieldInfo();
                 Class<?> fieldType = field.getType();
                 fieldInfo.column = column;
+                fieldInfo.columnLabel = OwlUtils.columnLabel(column.value());
+                fieldInfo.compress = column.compress();
                 fieldInfo.type = fieldType;
                 if (Parcelable.class.isAssignableFrom(fieldType)) {
                     try {
@@ -154,6 +441,48 @@ class PlainDataModel {
             }
             clazz = clazz.getSuperclass();
         }
+        if (collector.mRelations.isEmpty()) {
+            return collector;
+        }
+        // Registered before the related models are parsed, which may lead back here (e.g. Author.posts, Post.authors)
+        HashMap<Class, PlainDataModel> pending = sPendingCollectors.get();
+        pending.put(modelClass, collector);
+        try {
+            for (RelationInfo relationInfo : collector.mRelations) {
+                relationInfo.parentKeyField = collector.findColumnField(relationInfo.relation.parentColumn());
+                relationInfo.childKeyField = getModel(relationInfo.childClass)
+                        .findColumnField(relationInfo.relation.childColumn());
+            }
+        } finally {
+            pending.remove(modelClass);
+        }
         return collector;
     }
+
+    private static RelationInfo parseRelation(Field field, Relation relation) {
+        Type type = field.getGenericType();
+        Class rawType = field.getType();
+        if (!(type instanceof ParameterizedType) || !rawType.isAssignableFrom(ArrayList.class)) {
+            throw new IllegalArgumentException("@Relation field should be List<T>: " + field.getName());
+        }
+        RelationInfo relationInfo = new RelationInfo();
+        relationInfo.field = field;
+        relationInfo.relation = relation;
+        relationInfo.childClass = (Class) ((ParameterizedType) type).getActualTypeArguments()[0];
+        field.setAccessible(true);
+        return relationInfo;
+    }
+
+    static Field getColumnField(Class clazz, String columnName) {
+        return getModel(clazz).findColumnField(columnName);
+    }
+
+    private Field findColumnField(String columnName) {
+        for (Pair<Field, FieldInfo> pair : fields) {
+            if (pair.second.column.value().equals(columnName)) {
+                return pair.first;
+            }
+        }
+        throw new IllegalArgumentException("No @Column field for " + columnName);
+    }
 }
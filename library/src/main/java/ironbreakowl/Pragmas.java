@@ -0,0 +1,21 @@
+package ironbreakowl;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Pragmas {
+    long UNSET = Long.MIN_VALUE;
+
+    String journalMode() default "";
+    String synchronous() default "";
+    long cacheSize() default UNSET;
+    long mmapSize() default UNSET;
+    long pageSize() default UNSET;
+    String tempStore() default "";
+    long walAutoCheckpoint() default UNSET;
+    String autoVacuum() default "";
+}
@@ -0,0 +1,126 @@
+package ironbreakowl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class Predicate {
+    private static final Pattern PATTERN_COLUMN = Pattern.compile("\\w+(?:\\.\\w+)?");
+
+    final String sql;
+    final List<Object> args;
+
+    private Predicate(String sql, List<Object> args) {
+        this.sql = sql;
+        this.args = args;
+    }
+
+    public static Predicate eq(String column, Object value) {
+        return value == null ? isNull(column) : compare(column, "=", value);
+    }
+
+    public static Predicate ne(String column, Object value) {
+        return value == null ? isNotNull(column) : compare(column, "<>", value);
+    }
+
+    public static Predicate lt(String column, Object value) {
+        return compare(column, "<", value);
+    }
+
+    public static Predicate le(String column, Object value) {
+        return compare(column, "<=", value);
+    }
+
+    public static Predicate gt(String column, Object value) {
+        return compare(column, ">", value);
+    }
+
+    public static Predicate ge(String column, Object value) {
+        return compare(column, ">=", value);
+    }
+
+    public static Predicate like(String column, String pattern) {
+        return compare(column, " like ", pattern);
+    }
+
+    public static Predicate isNull(String column) {
+        return new Predicate(checkColumn(column) + " is null", Collections.emptyList());
+    }
+
+    public static Predicate isNotNull(String column) {
+        return new Predicate(checkColumn(column) + " is not null", Collections.emptyList());
+    }
+
+    public static Predicate in(String column, Collection<?> values) {
+        if (values.isEmpty()) {
+            return new Predicate("0", Collections.emptyList());
+        }
+        if (values.size() > OwlUtils.MAX_VARIABLE_NUMBER) {
+            throw new IllegalArgumentException("IN takes at most " + OwlUtils.MAX_VARIABLE_NUMBER + " values: " +
+                    values.size());
+        }
+        // Pad to a power of two by repeating the last value so that IN lists produce few distinct statements
+        ArrayList<Object> args = new ArrayList<>(values);
+        int paddedSize = Math.min(Integer.highestOneBit(args.size() - 1) << 1, OwlUtils.MAX_VARIABLE_NUMBER);
+        Object last = args.get(args.size() - 1);
+        while (args.size() < paddedSize) {
+            args.add(last);
+        }
+        StringBuilder sb = new StringBuilder(checkColumn(column)).append(" in (");
+        for (int i = 0; i < args.size(); i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        return new Predicate(sb.append(')').toString(), args);
+    }
+
+    public static Predicate and(Predicate... predicates) {
+        return combine(" and ", predicates);
+    }
+
+    public static Predicate or(Predicate... predicates) {
+        return combine(" or ", predicates);
+    }
+
+    public Predicate and(Predicate other) {
+        return and(this, other);
+    }
+
+    public Predicate or(Predicate other) {
+        return or(this, other);
+    }
+
+    private static Predicate compare(String column, String operator, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null cannot be compared: " + column);
+        }
+        return new Predicate(checkColumn(column) + operator + '?', Collections.singletonList(value));
+    }
+
+    private static Predicate combine(String operator, Predicate[] predicates) {
+        if (predicates.length == 0) {
+            throw new IllegalArgumentException("No predicates were provided");
+        }
+        if (predicates.length == 1) {
+            return predicates[0];
+        }
+        StringBuilder sb = new StringBuilder();
+        ArrayList<Object> args = new ArrayList<>();
+        for (int i = 0; i < predicates.length; i++) {
+            if (i > 0) {
+                sb.append(operator);
+            }
+            sb.append('(').append(predicates[i].sql).append(')');
+            args.addAll(predicates[i].args);
+        }
+        return new Predicate(sb.toString(), args);
+    }
+
+    static String checkColumn(String column) {
+        if (!PATTERN_COLUMN.matcher(column).matches()) {
+            throw new IllegalArgumentException("Invalid column name: " + column);
+        }
+        return column;
+    }
+}
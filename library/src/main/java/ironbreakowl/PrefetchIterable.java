@@ -0,0 +1,152 @@
+package ironbreakowl;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class PrefetchIterable implements CursorIterable {
+    interface Producer {
+        void produce(Sink sink);
+    }
+
+    interface Sink {
+        boolean put(Object row);
+    }
+
+    private static final Object END = new Object();
+
+    private static class Failure {
+        final Throwable error;
+
+        Failure(Throwable error) {
+            this.error = error;
+        }
+    }
+
+    private final ArrayBlockingQueue<Object> mQueue;
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+    private boolean mIteratorCreated;
+
+    PrefetchIterable(Producer producer, int queueSize) {
+        mQueue = new ArrayBlockingQueue<>(queueSize);
+        Thread thread = new Thread(new ProducerRunnable(producer, mQueue, mClosed, this), "OwlPrefetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized Iterator iterator() {
+        if (mIteratorCreated) {
+            throw new IllegalStateException("A prefetched result can be iterated only once");
+        }
+        mIteratorCreated = true;
+        return new Iterator() {
+            private Object mNext;
+
+            @Override
+            public boolean hasNext() {
+                if (mNext == null) {
+                    if (mClosed.get()) {
+                        return false;
+                    }
+                    mNext = take();
+                }
+                if (mNext == END) {
+                    close();
+                    return false;
+                } else if (mNext instanceof Failure) {
+                    close();
+                    Throwable error = ((Failure) mNext).error;
+                    if (error instanceof RuntimeException) {
+                        throw (RuntimeException) error;
+                    } else if (error instanceof Error) {
+                        throw (Error) error;
+                    }
+                    throw new RuntimeException(error);
+                }
+                return true;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Object next = mNext;
+                mNext = null;
+                return next;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Object take() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return mQueue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed.set(true);
+        mQueue.clear();
+    }
+
+    // Holds the iterable weakly so that an abandoned result stops the producer and releases the lock
+    private static class ProducerRunnable implements Runnable, Sink {
+        private final Producer mProducer;
+        private final ArrayBlockingQueue<Object> mQueue;
+        private final AtomicBoolean mClosed;
+        private final WeakReference<PrefetchIterable> mIterable;
+
+        ProducerRunnable(Producer producer, ArrayBlockingQueue<Object> queue, AtomicBoolean closed,
+                         PrefetchIterable iterable) {
+            mProducer = producer;
+            mQueue = queue;
+            mClosed = closed;
+            mIterable = new WeakReference<>(iterable);
+        }
+
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                mProducer.produce(this);
+                put(END);
+            } catch (Throwable e) {
+                put(new Failure(e));
+            }
+        }
+
+        @Override
+        public boolean put(Object row) {
+            try {
+                while (!mClosed.get() && mIterable.get() != null) {
+                    if (mQueue.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package ironbreakowl;
+
+public interface PurgeListener {
+    // Called on the background thread after every chunk
+    void onProgress(String tableName, int deletedRows, boolean finished);
+}
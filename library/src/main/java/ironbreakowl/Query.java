@@ -11,4 +11,7 @@ public @interface Query {
     String[] select() default {};
     String where() default "";
     String orderBy() default "";
+    String groupBy() default "";
+    String having() default "";
+    long timeoutMillis() default 0;
 }
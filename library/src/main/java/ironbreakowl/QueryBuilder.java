@@ -0,0 +1,142 @@
+package ironbreakowl;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class QueryBuilder {
+    private final OwlDatabaseOpenHelper mOpenHelper;
+    private final String mTableName;
+    private String[] mColumns;
+    private Predicate mWhere;
+    private final ArrayList<String> mOrderBy = new ArrayList<>();
+    private int mLimit = -1;
+
+    QueryBuilder(OwlDatabaseOpenHelper openHelper, String tableName) {
+        mOpenHelper = openHelper;
+        mTableName = tableName;
+    }
+
+    public QueryBuilder select(String... columns) {
+        for (String column : columns) {
+            Predicate.checkColumn(column);
+        }
+        mColumns = columns;
+        return this;
+    }
+
+    public QueryBuilder where(Predicate predicate) {
+        mWhere = mWhere == null ? predicate : mWhere.and(predicate);
+        return this;
+    }
+
+    public QueryBuilder orderBy(String column) {
+        mOrderBy.add(Predicate.checkColumn(column));
+        return this;
+    }
+
+    public QueryBuilder orderByDescending(String column) {
+        mOrderBy.add(Predicate.checkColumn(column) + " desc");
+        return this;
+    }
+
+    public QueryBuilder limit(int limit) {
+        mLimit = limit;
+        return this;
+    }
+
+    String toSql() {
+        String columns = mColumns == null || mColumns.length == 0 ? "*" : TextUtils.join(",", mColumns);
+        return buildSql(columns, true);
+    }
+
+    private String buildSql(String columns, boolean ordered) {
+        StringBuilder sb = new StringBuilder("select ").append(columns).append(" from ").append(mTableName);
+        if (mWhere != null) {
+            sb.append(" where ").append(mWhere.sql);
+        }
+        if (ordered && !mOrderBy.isEmpty()) {
+            sb.append(" order by ").append(TextUtils.join(",", mOrderBy));
+        }
+        if (mLimit >= 0) {
+            sb.append(" limit ").append(mLimit);
+        }
+        return sb.toString();
+    }
+
+    private Object[] args() {
+        if (mWhere == null) {
+            return new Object[0];
+        }
+        if (mWhere.args.size() > OwlUtils.MAX_VARIABLE_NUMBER) {
+            throw new IllegalArgumentException("A query takes at most " + OwlUtils.MAX_VARIABLE_NUMBER +
+                    " arguments: " + mWhere.args.size());
+        }
+        return mWhere.args.toArray();
+    }
+
+    public <T> List<T> list(Class<T> modelClass) {
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            Cursor cursor = mOpenHelper.rawQuery(db, toSql(), args(), mTableName);
+            ArrayList<T> list;
+            try {
+                list = PlainDataModel.collect(cursor, modelClass);
+            } finally {
+                cursor.close();
+            }
+            PlainDataModel.fillRelations(db, list, modelClass);
+            return list;
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+    }
+
+    public <T> CursorIterable<T> iterate(Class<T> readerClass) {
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            Cursor cursor = mOpenHelper.rawQuery(db, toSql(), args(), mTableName);
+            //noinspection unchecked
+            return mOpenHelper.iterate(cursor, readerClass);
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+    }
+
+    public int count() {
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            String sql = "select count(*) from (" + buildSql("1", false) + ")";
+            Cursor cursor = mOpenHelper.rawQuery(db, sql, args(), mTableName);
+            try {
+                return cursor.moveToNext() ? cursor.getInt(0) : 0;
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+    }
+
+    public boolean exists() {
+        mOpenHelper.lock();
+        try {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            String sql = "select exists(" + buildSql("1", false) + ")";
+            Cursor cursor = mOpenHelper.rawQuery(db, sql, args(), mTableName);
+            try {
+                return cursor.moveToNext() && cursor.getInt(0) != 0;
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            mOpenHelper.mLock.unlock();
+        }
+    }
+}
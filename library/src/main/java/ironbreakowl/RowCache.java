@@ -0,0 +1,29 @@
+package ironbreakowl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class RowCache {
+    private final LinkedHashMap<Object, Object> mRows;
+
+    RowCache(final int maxSize) {
+        mRows = new LinkedHashMap<Object, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized Object get(Object key) {
+        return mRows.get(key);
+    }
+
+    synchronized void put(Object key, Object row) {
+        mRows.put(key, row);
+    }
+
+    synchronized void clear() {
+        mRows.clear();
+    }
+}
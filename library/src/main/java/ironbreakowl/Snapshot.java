@@ -0,0 +1,229 @@
+package ironbreakowl;
+
+import android.database.Cursor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// A read-only copy of a table written by OwlDatabaseOpenHelper.exportSnapshot(), looked up by key straight from a
+// memory-mapped file. Layout, big-endian:
+//   header   magic, version, key type, key width, row count, column count, key column, index offset,
+//            then each column name as a short length and UTF-8
+//   index    per row in key order: the key (a long, or UTF-8 zero-padded to the key width) and a record offset
+//   records  per column: a Cursor.FIELD_TYPE_* byte, then a long, a double or an int length and the bytes
+public final class Snapshot implements Closeable {
+    static final int MAGIC = 0x4f574c53;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+
+    private volatile ByteBuffer mBuffer;
+    private final int mKeyType;
+    private final int mKeyWidth;
+    private final int mRowCount;
+    private final String[] mColumnNames;
+    private final int mIndexOffset;
+    private final int mEntrySize;
+
+    private Snapshot(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + buffer.getInt(4));
+        }
+        mKeyType = buffer.getInt(8);
+        mKeyWidth = buffer.getInt(12);
+        mRowCount = buffer.getInt(16);
+        mColumnNames = new String[buffer.getInt(20)];
+        mIndexOffset = buffer.getInt(28);
+        mEntrySize = mKeyWidth + 4;
+        ByteBuffer names = buffer.duplicate();
+        names.position(HEADER_SIZE);
+        for (int i = 0; i < mColumnNames.length; i++) {
+            byte[] name = new byte[names.getShort()];
+            names.get(name);
+            mColumnNames[i] = new String(name, OwlUtils.UTF_8);
+        }
+        if ((long) mIndexOffset + (long) mRowCount * mEntrySize > buffer.capacity()) {
+            throw new IOException("Truncated snapshot file");
+        }
+    }
+
+    // The mapping outlives the file handle and is released when the Snapshot is garbage collected
+    public static Snapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot file exceeds 2 GB: " + file);
+            }
+            return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public int size() {
+        return mRowCount;
+    }
+
+    public String[] getColumnNames() {
+        return mColumnNames.clone();
+    }
+
+    public <T> Single<T> get(Object key, Class<T> clazz) {
+        ByteBuffer buffer = checkOpen();
+        Object probe = toProbe(key);
+        int position = lowerBound(buffer, probe);
+        if (position == mRowCount || compareKey(buffer, position, probe) != 0) {
+            return Single.empty();
+        }
+        SnapshotCursor cursor = newCursor(position, position + 1);
+        cursor.moveToFirst();
+        return Single.of(readRow(cursor, clazz, true));
+    }
+
+    // Rows with fromKey <= key < toKey in key order; a null bound is open
+    public <T> List<T> range(Object fromKey, Object toKey, Class<T> clazz) {
+        SnapshotCursor cursor = newRangeCursor(fromKey, toKey);
+        ArrayList<T> list = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            list.add(readRow(cursor, clazz, true));
+        }
+        return list;
+    }
+
+    public <T> Iterable<T> iterate(Class<T> clazz) {
+        return iterate(null, null, clazz);
+    }
+
+    // An interface model is a single reader over the current row, as for @Query iterables
+    public <T> Iterable<T> iterate(final Object fromKey, final Object toKey, final Class<T> clazz) {
+        checkOpen();
+        return new Iterable<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                final SnapshotCursor cursor = newRangeCursor(fromKey, toKey);
+                final T reader = clazz.isInterface() ? CursorReader.create(cursor, clazz) : null;
+                return new Iterator<T>() {
+                    @Override
+                    public boolean hasNext() {
+                        return cursor.getPosition() + 1 < cursor.getCount();
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!cursor.moveToNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return reader != null ? reader : readRow(cursor, clazz, false);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        mBuffer = null;
+    }
+
+    private static <T> T readRow(Cursor cursor, Class<T> clazz, boolean detached) {
+        if (clazz.isInterface()) {
+            return detached ? CursorReader.snapshot(cursor, clazz) : CursorReader.create(cursor, clazz);
+        }
+        return PlainDataModel.readRow(cursor, clazz);
+    }
+
+    private SnapshotCursor newRangeCursor(Object fromKey, Object toKey) {
+        ByteBuffer buffer = checkOpen();
+        int start = fromKey == null ? 0 : lowerBound(buffer, toProbe(fromKey));
+        int end = toKey == null ? mRowCount : lowerBound(buffer, toProbe(toKey));
+        return newCursor(start, Math.max(start, end));
+    }
+
+    private SnapshotCursor newCursor(int start, int end) {
+        return new SnapshotCursor(checkOpen(), mColumnNames, mIndexOffset + start * mEntrySize, mEntrySize,
+                end - start);
+    }
+
+    private ByteBuffer checkOpen() {
+        ByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+        return buffer;
+    }
+
+    private Object toProbe(Object key) {
+        if (mKeyType == Cursor.FIELD_TYPE_INTEGER) {
+            if (!(key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)) {
+                throw new IllegalArgumentException("Snapshot keys are integers");
+            }
+            return ((Number) key).longValue();
+        }
+        if (!(key instanceof String)) {
+            throw new IllegalArgumentException("Snapshot keys are strings");
+        }
+        return ((String) key).getBytes(OwlUtils.UTF_8);
+    }
+
+    // First position whose key is not less than the probe
+    private int lowerBound(ByteBuffer buffer, Object probe) {
+        int low = 0;
+        int high = mRowCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(buffer, mid, probe) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int compareKey(ByteBuffer buffer, int position, Object probe) {
+        int entry = mIndexOffset + position * mEntrySize;
+        if (mKeyType == Cursor.FIELD_TYPE_INTEGER) {
+            long value = (Long) probe;
+            long stored = buffer.getLong(entry);
+            return stored < value ? -1 : (stored == value ? 0 : 1);
+        }
+        byte[] value = (byte[]) probe;
+        for (int i = 0; i < mKeyWidth; i++) {
+            int a = buffer.get(entry + i) & 0xff;
+            int b = i < value.length ? value[i] & 0xff : 0;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return value.length > mKeyWidth ? -1 : 0;
+    }
+
+    // Unsigned byte order, which is SQLite's BINARY collation for UTF-8 text
+    static int compareKeys(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+}
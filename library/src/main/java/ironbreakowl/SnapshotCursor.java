@@ -0,0 +1,169 @@
+package ironbreakowl;
+
+import android.database.AbstractCursor;
+import android.database.sqlite.SQLiteException;
+
+import java.nio.ByteBuffer;
+
+// Reads rows of a Snapshot in place; numbers come straight from the mapping and only strings and blobs are copied.
+// Conversions between storage classes follow CursorWindow.
+class SnapshotCursor extends AbstractCursor {
+
+    private final ByteBuffer mData;
+    private final String[] mColumnNames;
+    private final int mFirstEntry;
+    private final int mEntrySize;
+    private final int mCount;
+    private final byte[] mTypes;
+    private final int[] mOffsets;
+
+    SnapshotCursor(ByteBuffer buffer, String[] columnNames, int firstEntry, int entrySize, int count) {
+        // Bulk reads move the position, so every cursor gets its own view
+        mData = buffer.duplicate();
+        mColumnNames = columnNames;
+        mFirstEntry = firstEntry;
+        mEntrySize = entrySize;
+        mCount = count;
+        mTypes = new byte[columnNames.length];
+        mOffsets = new int[columnNames.length];
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int offset = mData.getInt(mFirstEntry + newPosition * mEntrySize + mEntrySize - 4);
+        for (int i = 0; i < mTypes.length; i++) {
+            byte type = mData.get(offset++);
+            mTypes[i] = type;
+            mOffsets[i] = offset;
+            switch (type) {
+                case FIELD_TYPE_INTEGER:
+                case FIELD_TYPE_FLOAT:
+                    offset += 8;
+                    break;
+                case FIELD_TYPE_STRING:
+                case FIELD_TYPE_BLOB:
+                    offset += 4 + mData.getInt(offset);
+                    break;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        checkPosition();
+        return mTypes[column];
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getType(column) == FIELD_TYPE_NULL;
+    }
+
+    @Override
+    public String getString(int column) {
+        switch (getType(column)) {
+            case FIELD_TYPE_NULL:
+                return null;
+            case FIELD_TYPE_INTEGER:
+                return String.valueOf(mData.getLong(mOffsets[column]));
+            case FIELD_TYPE_FLOAT:
+                return String.valueOf(mData.getDouble(mOffsets[column]));
+            case FIELD_TYPE_STRING:
+                return new String(readBytes(column), OwlUtils.UTF_8);
+            default:
+                throw new SQLiteException("Unable to convert BLOB to string");
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        switch (getType(column)) {
+            case FIELD_TYPE_NULL:
+                return null;
+            case FIELD_TYPE_STRING:
+            case FIELD_TYPE_BLOB:
+                return readBytes(column);
+            default:
+                throw new SQLiteException("Unable to convert a number to a BLOB");
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        switch (getType(column)) {
+            case FIELD_TYPE_NULL:
+                return 0;
+            case FIELD_TYPE_INTEGER:
+                return mData.getLong(mOffsets[column]);
+            case FIELD_TYPE_FLOAT:
+                return (long) mData.getDouble(mOffsets[column]);
+            case FIELD_TYPE_STRING:
+                String s = getString(column);
+                try {
+                    return Long.parseLong(s);
+                } catch (NumberFormatException e) {
+                    return (long) parseDouble(s);
+                }
+            default:
+                throw new SQLiteException("Unable to convert BLOB to long");
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        switch (getType(column)) {
+            case FIELD_TYPE_NULL:
+                return 0;
+            case FIELD_TYPE_INTEGER:
+                return mData.getLong(mOffsets[column]);
+            case FIELD_TYPE_FLOAT:
+                return mData.getDouble(mOffsets[column]);
+            case FIELD_TYPE_STRING:
+                return parseDouble(getString(column));
+            default:
+                throw new SQLiteException("Unable to convert BLOB to double");
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    private byte[] readBytes(int column) {
+        int offset = mOffsets[column];
+        byte[] bytes = new byte[mData.getInt(offset)];
+        mData.position(offset + 4);
+        mData.get(bytes);
+        return bytes;
+    }
+
+    private static double parseDouble(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package ironbreakowl;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Two passes over the table: the first sizes the fixed-width key index, the second writes the index and the records
+// side by side. See Snapshot for the layout.
+class SnapshotWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Every index entry is as wide as the longest key
+    private static final int MAX_KEY_BYTES = 1024;
+
+    private static class Section {
+        private final FileChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long mPosition;
+
+        Section(FileChannel channel, long position) {
+            mChannel = channel;
+            mPosition = position;
+        }
+
+        long position() {
+            return mPosition + mBuffer.position();
+        }
+
+        ByteBuffer reserve(int bytes) throws IOException {
+            if (mBuffer.remaining() < bytes) {
+                flush();
+            }
+            return mBuffer;
+        }
+
+        void put(byte[] bytes) throws IOException {
+            if (bytes.length > BUFFER_SIZE) {
+                flush();
+                write(ByteBuffer.wrap(bytes));
+            } else {
+                reserve(bytes.length).put(bytes);
+            }
+        }
+
+        void flush() throws IOException {
+            mBuffer.flip();
+            write(mBuffer);
+            mBuffer.clear();
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mPosition += mChannel.write(buffer, mPosition);
+            }
+        }
+    }
+
+    static class KeyLayout {
+        int type = Cursor.FIELD_TYPE_INTEGER;
+        int width = 8;
+        int rowCount;
+    }
+
+    static void write(SQLiteDatabase db, String tableName, String keyColumn, File file) throws IOException {
+        String[] columns;
+        Cursor cursor = db.rawQuery("select * from " + tableName + " limit 0", null);
+        try {
+            columns = cursor.getColumnNames();
+        } finally {
+            cursor.close();
+        }
+        int keyIndex = -1;
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(keyColumn)) {
+                keyIndex = i;
+            }
+        }
+        if (keyIndex < 0) {
+            throw new IllegalArgumentException("No column " + keyColumn + " in " + tableName);
+        }
+
+        String orderBy = " from " + tableName + " order by " + quote(columns[keyIndex]);
+        KeyLayout layout;
+        cursor = db.rawQuery("select typeof(" + quote(columns[keyIndex]) + ")," + quote(columns[keyIndex]) + orderBy,
+                null);
+        try {
+            layout = scanKeys(cursor, tableName);
+        } finally {
+            cursor.close();
+        }
+
+        StringBuilder select = new StringBuilder("select ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                select.append(',');
+            }
+            select.append("typeof(").append(quote(columns[i])).append("),").append(quote(columns[i]));
+        }
+        cursor = db.rawQuery(select.append(orderBy).toString(), null);
+        try {
+            writeRows(cursor, tableName, columns, keyIndex, layout, file);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The cursor holds typeof(key) and the key, sorted by key
+    static KeyLayout scanKeys(Cursor cursor, String tableName) {
+        int keyType = Cursor.FIELD_TYPE_NULL;
+        int keyWidth = 0;
+        int rowCount = 0;
+        while (cursor.moveToNext()) {
+            int type = parseType(cursor.getString(0));
+            if (type != Cursor.FIELD_TYPE_INTEGER && type != Cursor.FIELD_TYPE_STRING) {
+                throw new IllegalArgumentException("Snapshot keys must be integers or text: " + tableName);
+            }
+            if (keyType != Cursor.FIELD_TYPE_NULL && type != keyType) {
+                throw new IllegalArgumentException("Snapshot keys must all have the same type: " + tableName);
+            }
+            keyType = type;
+            if (type == Cursor.FIELD_TYPE_STRING) {
+                String key = cursor.getString(1);
+                if (key.indexOf('\0') >= 0) {
+                    throw new IllegalArgumentException("Snapshot keys must not contain NUL: " + tableName);
+                }
+                keyWidth = Math.max(keyWidth, key.getBytes(OwlUtils.UTF_8).length);
+                if (keyWidth > MAX_KEY_BYTES) {
+                    throw new IllegalArgumentException("Snapshot keys must not exceed " + MAX_KEY_BYTES +
+                            " bytes: " + tableName);
+                }
+            }
+            rowCount++;
+        }
+        KeyLayout layout = new KeyLayout();
+        if (keyType == Cursor.FIELD_TYPE_STRING) {
+            layout.type = keyType;
+            layout.width = keyWidth;
+        }
+        layout.rowCount = rowCount;
+        return layout;
+    }
+
+    // The cursor holds typeof(column) and the column for every column, in the same order as scanKeys() saw them
+    static void writeRows(Cursor cursor, String tableName, String[] columns, int keyIndex, KeyLayout layout,
+                          File file) throws IOException {
+        int keyType = layout.type;
+        int keyWidth = layout.width;
+        int rowCount = layout.rowCount;
+
+        byte[][] names = new byte[columns.length][];
+        int headerSize = Snapshot.HEADER_SIZE;
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = columns[i].getBytes(OwlUtils.UTF_8);
+            headerSize += 2 + names[i].length;
+        }
+        long indexOffset = (headerSize + 7) & ~7;
+        long recordsOffset = indexOffset + (long) rowCount * (keyWidth + 4);
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        boolean written = false;
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            header.putInt(Snapshot.MAGIC).putInt(Snapshot.VERSION).putInt(keyType).putInt(keyWidth)
+                    .putInt(rowCount).putInt(columns.length).putInt(keyIndex).putInt((int) indexOffset);
+            for (byte[] name : names) {
+                header.putShort((short) name.length).put(name);
+            }
+            header.flip();
+            channel.write(header, 0);
+
+            Section index = new Section(channel, indexOffset);
+            Section records = new Section(channel, recordsOffset);
+            byte[] previousKey = null;
+            long previousLongKey = Long.MIN_VALUE;
+            int rows = 0;
+            while (cursor.moveToNext()) {
+                if (++rows > rowCount) break;
+                long recordOffset = records.position();
+                if (recordOffset > Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot of " + tableName + " exceeds 2 GB");
+                }
+                // SQLite sorts text by memcmp, which matches the reader only for UTF-8 databases
+                ByteBuffer entry = index.reserve(keyWidth + 4);
+                if (keyType == Cursor.FIELD_TYPE_INTEGER) {
+                    long key = cursor.getLong(keyIndex * 2 + 1);
+                    checkOrder(key >= previousLongKey, tableName);
+                    previousLongKey = key;
+                    entry.putLong(key);
+                } else {
+                    byte[] key = cursor.getString(keyIndex * 2 + 1).getBytes(OwlUtils.UTF_8);
+                    checkOrder(previousKey == null || Snapshot.compareKeys(previousKey, key) <= 0, tableName);
+                    previousKey = key;
+                    entry.put(key);
+                    for (int i = key.length; i < keyWidth; i++) {
+                        entry.put((byte) 0);
+                    }
+                }
+                entry.putInt((int) recordOffset);
+                for (int i = 0; i < columns.length; i++) {
+                    writeValue(records, parseType(cursor.getString(i * 2)), cursor, i * 2 + 1);
+                }
+            }
+            if (rows != rowCount) {
+                throw new IllegalStateException(tableName + " changed while the snapshot was written");
+            }
+            index.flush();
+            records.flush();
+            channel.force(true);
+            raf.close();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+            written = true;
+        } finally {
+            raf.close();
+            if (!written) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void writeValue(Section records, int type, Cursor cursor, int column) throws IOException {
+        records.reserve(1).put((byte) type);
+        switch (type) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                records.reserve(8).putLong(cursor.getLong(column));
+                break;
+            case Cursor.FIELD_TYPE_FLOAT:
+                records.reserve(8).putDouble(cursor.getDouble(column));
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+            case Cursor.FIELD_TYPE_BLOB:
+                byte[] bytes = type == Cursor.FIELD_TYPE_STRING ? cursor.getString(column).getBytes(OwlUtils.UTF_8) :
+                        cursor.getBlob(column);
+                records.reserve(4).putInt(bytes.length);
+                records.put(bytes);
+                break;
+        }
+    }
+
+    private static int parseType(String typeof) {
+        switch (typeof) {
+            case "integer":
+                return Cursor.FIELD_TYPE_INTEGER;
+            case "real":
+                return Cursor.FIELD_TYPE_FLOAT;
+            case "text":
+                return Cursor.FIELD_TYPE_STRING;
+            case "blob":
+                return Cursor.FIELD_TYPE_BLOB;
+            default:
+                return Cursor.FIELD_TYPE_NULL;
+        }
+    }
+
+    private static void checkOrder(boolean sorted, String tableName) {
+        if (!sorted) {
+            throw new IllegalStateException("Keys of " + tableName + " are not in binary order");
+        }
+    }
+
+    private static String quote(String column) {
+        return '"' + column.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,212 @@
+package ironbreakowl;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+public final class StorageProfile {
+    public static final String JOURNAL_MODE_DELETE = "DELETE";
+    public static final String JOURNAL_MODE_TRUNCATE = "TRUNCATE";
+    public static final String JOURNAL_MODE_PERSIST = "PERSIST";
+    public static final String JOURNAL_MODE_MEMORY = "MEMORY";
+    public static final String JOURNAL_MODE_WAL = "WAL";
+    public static final String JOURNAL_MODE_OFF = "OFF";
+
+    public static final String SYNCHRONOUS_OFF = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL = "FULL";
+    public static final String SYNCHRONOUS_EXTRA = "EXTRA";
+
+    public static final String TEMP_STORE_DEFAULT = "DEFAULT";
+    public static final String TEMP_STORE_FILE = "FILE";
+    public static final String TEMP_STORE_MEMORY = "MEMORY";
+
+    public static final String AUTO_VACUUM_NONE = "NONE";
+    public static final String AUTO_VACUUM_FULL = "FULL";
+    public static final String AUTO_VACUUM_INCREMENTAL = "INCREMENTAL";
+
+    static final String[] PRAGMA_NAMES = {"journal_mode", "synchronous", "cache_size", "mmap_size", "page_size",
+            "temp_store", "wal_autocheckpoint", "auto_vacuum"};
+
+    private static final List<String> JOURNAL_MODES = Arrays.asList(JOURNAL_MODE_DELETE, JOURNAL_MODE_TRUNCATE,
+            JOURNAL_MODE_PERSIST, JOURNAL_MODE_MEMORY, JOURNAL_MODE_WAL, JOURNAL_MODE_OFF);
+    private static final List<String> SYNCHRONOUS_MODES = Arrays.asList(SYNCHRONOUS_OFF, SYNCHRONOUS_NORMAL,
+            SYNCHRONOUS_FULL, SYNCHRONOUS_EXTRA);
+    private static final List<String> TEMP_STORES = Arrays.asList(TEMP_STORE_DEFAULT, TEMP_STORE_FILE,
+            TEMP_STORE_MEMORY);
+    private static final List<String> AUTO_VACUUM_MODES = Arrays.asList(AUTO_VACUUM_NONE, AUTO_VACUUM_FULL,
+            AUTO_VACUUM_INCREMENTAL);
+
+    private String mJournalMode;
+    private String mSynchronous;
+    private Long mCacheSize;
+    private Long mMmapSize;
+    private Integer mPageSize;
+    private String mTempStore;
+    private Integer mWalAutoCheckpoint;
+    private String mAutoVacuum;
+
+    public StorageProfile journalMode(String journalMode) {
+        mJournalMode = checkMode("journal_mode", journalMode, JOURNAL_MODES);
+        return this;
+    }
+
+    public StorageProfile synchronous(String synchronous) {
+        mSynchronous = checkMode("synchronous", synchronous, SYNCHRONOUS_MODES);
+        return this;
+    }
+
+    // Positive values are pages, negative values are KiB as in SQLite
+    public StorageProfile cacheSize(long cacheSize) {
+        mCacheSize = cacheSize;
+        return this;
+    }
+
+    public StorageProfile mmapSize(long mmapSize) {
+        if (mmapSize < 0) {
+            throw new IllegalArgumentException("mmap_size must not be negative");
+        }
+        mMmapSize = mmapSize;
+        return this;
+    }
+
+    // Only takes effect before the first table is created or after a VACUUM
+    public StorageProfile pageSize(int pageSize) {
+        if (pageSize < 512 || pageSize > 65536 || (pageSize & (pageSize - 1)) != 0) {
+            throw new IllegalArgumentException("page_size must be a power of two between 512 and 65536");
+        }
+        mPageSize = pageSize;
+        return this;
+    }
+
+    public StorageProfile tempStore(String tempStore) {
+        mTempStore = checkMode("temp_store", tempStore, TEMP_STORES);
+        return this;
+    }
+
+    public StorageProfile walAutoCheckpoint(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("wal_autocheckpoint must not be negative");
+        }
+        mWalAutoCheckpoint = pages;
+        return this;
+    }
+
+    // Like page_size, only takes effect before the first table is created or after a VACUUM
+    public StorageProfile autoVacuum(String autoVacuum) {
+        mAutoVacuum = checkMode("auto_vacuum", autoVacuum, AUTO_VACUUM_MODES);
+        return this;
+    }
+
+    public String getJournalMode() {
+        return mJournalMode;
+    }
+
+    public String getSynchronous() {
+        return mSynchronous;
+    }
+
+    public Long getCacheSize() {
+        return mCacheSize;
+    }
+
+    public Long getMmapSize() {
+        return mMmapSize;
+    }
+
+    public Integer getPageSize() {
+        return mPageSize;
+    }
+
+    public String getTempStore() {
+        return mTempStore;
+    }
+
+    public Integer getWalAutoCheckpoint() {
+        return mWalAutoCheckpoint;
+    }
+
+    public String getAutoVacuum() {
+        return mAutoVacuum;
+    }
+
+    public boolean isEmpty() {
+        return mJournalMode == null && mSynchronous == null && mCacheSize == null && mMmapSize == null &&
+                mPageSize == null && mTempStore == null && mWalAutoCheckpoint == null && mAutoVacuum == null;
+    }
+
+    static StorageProfile from(Pragmas pragmas) {
+        if (pragmas == null) return null;
+        StorageProfile profile = new StorageProfile();
+        if (!TextUtils.isEmpty(pragmas.journalMode())) {
+            profile.journalMode(pragmas.journalMode());
+        }
+        if (!TextUtils.isEmpty(pragmas.synchronous())) {
+            profile.synchronous(pragmas.synchronous());
+        }
+        if (pragmas.cacheSize() != Pragmas.UNSET) {
+            profile.cacheSize(pragmas.cacheSize());
+        }
+        if (pragmas.mmapSize() != Pragmas.UNSET) {
+            profile.mmapSize(pragmas.mmapSize());
+        }
+        if (pragmas.pageSize() != Pragmas.UNSET) {
+            profile.pageSize(checkInt("page_size", pragmas.pageSize()));
+        }
+        if (!TextUtils.isEmpty(pragmas.tempStore())) {
+            profile.tempStore(pragmas.tempStore());
+        }
+        if (pragmas.walAutoCheckpoint() != Pragmas.UNSET) {
+            profile.walAutoCheckpoint(checkInt("wal_autocheckpoint", pragmas.walAutoCheckpoint()));
+        }
+        if (!TextUtils.isEmpty(pragmas.autoVacuum())) {
+            profile.autoVacuum(pragmas.autoVacuum());
+        }
+        return profile;
+    }
+
+    // Journal mode is left out; WAL has to go through the framework so its connection pool knows about it
+    List<String> toStatements() {
+        ArrayList<String> statements = new ArrayList<>();
+        if (mAutoVacuum != null) {
+            statements.add("PRAGMA auto_vacuum=" + mAutoVacuum);
+        }
+        if (mPageSize != null) {
+            statements.add("PRAGMA page_size=" + mPageSize);
+        }
+        if (mSynchronous != null) {
+            statements.add("PRAGMA synchronous=" + mSynchronous);
+        }
+        if (mCacheSize != null) {
+            statements.add("PRAGMA cache_size=" + mCacheSize);
+        }
+        if (mMmapSize != null) {
+            statements.add("PRAGMA mmap_size=" + mMmapSize);
+        }
+        if (mTempStore != null) {
+            statements.add("PRAGMA temp_store=" + mTempStore);
+        }
+        if (mWalAutoCheckpoint != null) {
+            statements.add("PRAGMA wal_autocheckpoint=" + mWalAutoCheckpoint);
+        }
+        return statements;
+    }
+
+    private static String checkMode(String pragma, String value, List<String> modes) {
+        String mode = value == null ? null : value.toUpperCase(Locale.US);
+        if (!modes.contains(mode)) {
+            throw new IllegalArgumentException("Invalid " + pragma + ": " + value);
+        }
+        return mode;
+    }
+
+    private static int checkInt(String pragma, long value) {
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid " + pragma + ": " + value);
+        }
+        return (int) value;
+    }
+}
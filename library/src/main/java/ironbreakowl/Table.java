@@ -9,4 +9,8 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE)
 public @interface Table {
     String value();
+    int cacheSize() default 0;
+    String retentionColumn() default "";
+    long maxAgeMillis() default 0;
+    long maxRows() default 0;
 }
@@ -0,0 +1,9 @@
+package ironbreakowl;
+
+public abstract class TrackedModel {
+    transient Object[] snapshot;
+
+    public boolean hasChanges() {
+        return PlainDataModel.hasChanges(this);
+    }
+}
@@ -0,0 +1,29 @@
+package ironbreakowl;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Build;
+
+class TypedArgumentCursorFactory implements SQLiteDatabase.CursorFactory {
+    private final Object[] mArgs;
+
+    TypedArgumentCursorFactory(Object[] args) {
+        mArgs = args;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable, SQLiteQuery query) {
+        for (int i = 0; i < mArgs.length; i++) {
+            OwlUtils.bindValue(query, i + 1, mArgs[i]);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return new SQLiteCursor(masterQuery, editTable, query);
+        } else {
+            return new SQLiteCursor(db, masterQuery, editTable, query);
+        }
+    }
+}